@@ -0,0 +1,33 @@
+package com.shrnk.config;
+
+import com.shrnk.util.BufferPool;
+import com.shrnk.util.StreamUtils;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Applies the copy buffer settings to {@link StreamUtils} and the direct buffer pool settings to
+ * {@link BufferPool}
+ */
+@Configuration
+public class IoConfig {
+
+    @Value("${shrnk.io.buffer-size:1048576}")
+    private int bufferSize;
+
+    @Value("${shrnk.io.pooled-buffers:32}")
+    private int pooledBuffers;
+
+    @Value("${shrnk.io.direct-pool-mb:64}")
+    private long directPoolMb;
+
+    @Value("${shrnk.io.leak-stack-traces:false}")
+    private boolean leakStackTraces;
+
+    @PostConstruct
+    public void init() {
+        StreamUtils.configure(bufferSize, pooledBuffers);
+        BufferPool.configure(directPoolMb << 20, leakStackTraces);
+    }
+}
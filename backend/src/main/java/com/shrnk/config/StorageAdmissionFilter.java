@@ -0,0 +1,102 @@
+package com.shrnk.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.shrnk.service.JobRejectedException;
+import com.shrnk.service.StorageQuota;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reserves disk space for a job upload before its body is read, since the multipart parser spools
+ * the whole body to disk before any controller runs. The estimate is the request size plus what
+ * the job will write next to it: the extracted entries for archive extraction (refined once the
+ * central directory is read), a processed copy for archive creation and image processing.
+ * A request that has to wait for space waits here, before a byte of it is accepted.
+ */
+@Component
+public class StorageAdmissionFilter extends OncePerRequestFilter {
+
+    @Autowired
+    private StorageQuota storageQuota;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${shrnk.storage.extract-ratio:3.0}")
+    private double extractRatio;
+
+    @Value("${spring.servlet.multipart.max-request-size:2048MB}")
+    private DataSize maxRequestSize;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return !"POST".equals(request.getMethod())
+                || request.getContentType() == null
+                || !request.getContentType().startsWith(MediaType.MULTIPART_FORM_DATA_VALUE)
+                || !(path.startsWith("/api/archive/") || path.startsWith("/api/image/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        StorageQuota.Reservation reservation;
+        try {
+            reservation = storageQuota.reserve(estimate(request));
+        } catch (JobRejectedException e) {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("error", e.getMessage());
+            body.put("queueDepth", e.getQueueDepth());
+            response.setHeader(HttpHeaders.RETRY_AFTER, "10");
+            reject(response, HttpStatus.TOO_MANY_REQUESTS, body);
+            return;
+        } catch (IllegalArgumentException e) {
+            reject(response, HttpStatus.PAYLOAD_TOO_LARGE, Map.<String, Object>of("error", e.getMessage()));
+            return;
+        }
+
+        StorageQuota.bind(reservation);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            StorageQuota.bind(null);
+            reservation.close(); // a background job keeps its own hold
+        }
+    }
+
+    /**
+     * Bytes the request will put on disk: its body plus the job's expected output
+     */
+    private long estimate(HttpServletRequest request) {
+        long length = request.getContentLengthLong();
+        if (length < 0)
+            length = maxRequestSize.toBytes(); // chunked body: assume the largest we accept
+        String path = request.getRequestURI();
+        if (path.endsWith("/unzip") || path.endsWith("/extract-selected"))
+            return length + (long) (length * extractRatio);
+        if (path.endsWith("/zip-stream") || path.endsWith("/peek"))
+            return length; // nothing written beyond the upload
+        return length * 2;
+    }
+
+    private void reject(HttpServletResponse response, HttpStatus status, Map<String, Object> body)
+            throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), body);
+    }
+}
@@ -1,57 +1,114 @@
 package com.shrnk.controller;
 
 import com.shrnk.model.FileEntry;
+import com.shrnk.model.Job;
+import com.shrnk.service.ArchiveHandleCache;
 import com.shrnk.service.ArchiveService;
+import com.shrnk.service.DownloadService;
+import com.shrnk.service.JobRejectedException;
+import com.shrnk.service.JobScheduler;
+import com.shrnk.service.JobService;
+import com.shrnk.service.OutputChecksums;
 import com.shrnk.service.ProgressService;
+import com.shrnk.service.SessionRegistry;
+import com.shrnk.service.UploadService;
+import com.shrnk.util.CentralDirectoryReader;
+import com.shrnk.util.IndexedZipFile;
+import com.shrnk.util.StreamUtils;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 @RestController
 @RequestMapping("/api/archive")
 public class ArchiveController {
 
+    private static final String PASSWORD_HEADER = "X-Archive-Password";
+
     @Autowired
     private ArchiveService archiveService;
 
     @Autowired
     private ProgressService progressService;
 
+    @Autowired
+    private DownloadService downloadService;
+
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private ArchiveHandleCache archiveHandleCache;
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OutputChecksums outputChecksums;
+
     /**
-     * Upload files and create a ZIP archive
+     * Upload files and create a ZIP archive. With async=true, returns a job ID immediately.
      */
     @PostMapping("/zip")
     public ResponseEntity<Map<String, Object>> createZip(
-            @RequestParam("files") MultipartFile[] files,
+            @RequestParam(value = "files", required = false) MultipartFile[] files,
+            @RequestParam(value = "uploadIds", required = false) List<String> uploadIds,
             @RequestParam(value = "paths", required = false) List<String> paths,
             @RequestParam(value = "password", required = false) String password,
             @RequestParam(value = "resizeOption", required = false) String resizeOption,
             @RequestParam(value = "stripMetadata", defaultValue = "false") boolean stripMetadata,
-            @RequestParam(value = "compressionLevel", defaultValue = "NORMAL") String compressionLevel) {
+            @RequestParam(value = "compressionLevel", defaultValue = "NORMAL") String compressionLevel,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
 
         String sessionId = UUID.randomUUID().toString();
         Map<String, Object> response = new HashMap<>();
 
         try {
-            File zipFile = archiveService.createZip(sessionId, files, paths, password, resizeOption, stripMetadata,
-                    compressionLevel);
-            response.put("sessionId", sessionId);
-            response.put("status", "complete");
-            response.put("fileName", zipFile.getName());
-            response.put("size", zipFile.length());
-            return ResponseEntity.ok(response);
+            files = inputs(files, uploadIds);
+            if (async) {
+                MultipartFile[] uploads = files;
+                return accepted(jobService.submit(sessionId, "zip", () -> {
+                    MultipartFile[] saved = archiveService.saveUploads(sessionId, uploads);
+                    return () -> zipResult(sessionId, archiveService.createZip(sessionId, saved, paths, password,
+                            resizeOption, stripMetadata, compressionLevel));
+                }));
+            }
+            JobScheduler.Ticket ticket = jobScheduler.admit(sessionId);
+            try (ticket) {
+                File zipFile = archiveService.createZip(sessionId, files, paths, password, resizeOption,
+                        stripMetadata, compressionLevel);
+                progressService.sendComplete(sessionId);
+                return ResponseEntity.ok(zipResult(sessionId, zipFile));
+            }
+        } catch (JobRejectedException e) {
+            return busy(response, e);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
         } catch (IOException e) {
             response.put("error", e.getMessage());
             return ResponseEntity.internalServerError().body(response);
@@ -59,30 +116,86 @@ public class ArchiveController {
     }
 
     /**
-     * Upload a ZIP and extract all files
+     * Upload files and stream the ZIP archive back in the response as it is built
+     */
+    @PostMapping("/zip-stream")
+    public ResponseEntity<StreamingResponseBody> streamZip(
+            @RequestParam(value = "files", required = false) MultipartFile[] files,
+            @RequestParam(value = "uploadIds", required = false) List<String> uploadIds,
+            @RequestParam(value = "paths", required = false) List<String> paths,
+            @RequestParam(value = "password", required = false) String password,
+            @RequestParam(value = "resizeOption", required = false) String resizeOption,
+            @RequestParam(value = "stripMetadata", defaultValue = "false") boolean stripMetadata,
+            @RequestParam(value = "compressionLevel", defaultValue = "NORMAL") String compressionLevel) {
+
+        String sessionId = UUID.randomUUID().toString();
+        MultipartFile[] inputs;
+        try {
+            inputs = inputs(files, uploadIds);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        JobScheduler.Ticket ticket;
+        try {
+            ticket = jobScheduler.admit(sessionId);
+        } catch (JobRejectedException | IOException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, "5")
+                    .build();
+        }
+
+        StreamingResponseBody body = out -> {
+            try (ticket) {
+                archiveService.writeZip(sessionId, inputs, paths, password, resizeOption, stripMetadata,
+                        compressionLevel, StreamUtils.nonClosing(out));
+                progressService.sendComplete(sessionId);
+            } catch (IOException | RuntimeException e) {
+                progressService.sendError(sessionId, e.getMessage());
+                throw e;
+            }
+        };
+
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"archive.zip\"")
+                .header("X-Session-Id", sessionId)
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .body(body);
+    }
+
+    /**
+     * Upload a ZIP and extract all files. With async=true, returns a job ID immediately.
      */
     @PostMapping("/unzip")
     public ResponseEntity<Map<String, Object>> extractZip(
-            @RequestParam("file") MultipartFile file,
-            @RequestParam(value = "password", required = false) String password) {
+            @RequestParam(value = "file", required = false) MultipartFile file,
+            @RequestParam(value = "uploadId", required = false) String uploadId,
+            @RequestParam(value = "password", required = false) String password,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
 
         String sessionId = UUID.randomUUID().toString();
         Map<String, Object> response = new HashMap<>();
 
         try {
-            List<File> extracted = archiveService.extractZip(sessionId, file, password);
-            List<Map<String, Object>> fileList = new ArrayList<>();
-            for (File f : extracted) {
-                Map<String, Object> entry = new HashMap<>();
-                entry.put("name", f.getName());
-                entry.put("size", f.length());
-                fileList.add(entry);
+            file = input(file, uploadId);
+            if (async) {
+                MultipartFile upload = file;
+                return accepted(jobService.submit(sessionId, "unzip", () -> {
+                    MultipartFile saved = archiveService.saveUploads(sessionId, upload)[0];
+                    return () -> extractResult(sessionId, archiveService.extractZip(sessionId, saved, password), false);
+                }));
             }
-            response.put("sessionId", sessionId);
-            response.put("status", "complete");
-            response.put("files", fileList);
-            response.put("totalFiles", extracted.size());
-            return ResponseEntity.ok(response);
+            JobScheduler.Ticket ticket = jobScheduler.admit(sessionId);
+            try (ticket) {
+                List<File> extracted = archiveService.extractZip(sessionId, file, password);
+                progressService.sendComplete(sessionId);
+                return ResponseEntity.ok(extractResult(sessionId, extracted, false));
+            }
+        } catch (JobRejectedException e) {
+            return busy(response, e);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
         } catch (IOException e) {
             response.put("error", e.getMessage());
             return ResponseEntity.internalServerError().body(response);
@@ -94,18 +207,23 @@ public class ArchiveController {
      */
     @PostMapping("/peek")
     public ResponseEntity<Map<String, Object>> peekZip(
-            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "file", required = false) MultipartFile file,
+            @RequestParam(value = "uploadId", required = false) String uploadId,
             @RequestParam(value = "password", required = false) String password) {
 
         String sessionId = UUID.randomUUID().toString();
         Map<String, Object> response = new HashMap<>();
 
         try {
+            file = input(file, uploadId);
             List<FileEntry> entries = archiveService.peekZip(sessionId, file, password);
             response.put("sessionId", sessionId);
             response.put("status", "complete");
             response.put("entries", entries);
             return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
         } catch (IOException e) {
             response.put("error", e.getMessage());
             return ResponseEntity.internalServerError().body(response);
@@ -113,32 +231,40 @@ public class ArchiveController {
     }
 
     /**
-     * Extract selected files from a ZIP
+     * Extract selected files from a ZIP. With async=true, returns a job ID immediately.
      */
     @PostMapping("/extract-selected")
     public ResponseEntity<Map<String, Object>> extractSelected(
-            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "file", required = false) MultipartFile file,
+            @RequestParam(value = "uploadId", required = false) String uploadId,
             @RequestParam("paths") List<String> paths,
-            @RequestParam(value = "password", required = false) String password) {
+            @RequestParam(value = "password", required = false) String password,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
 
         String sessionId = UUID.randomUUID().toString();
         Map<String, Object> response = new HashMap<>();
 
         try {
-            List<File> extracted = archiveService.extractSelected(sessionId, file, paths, password);
-            List<Map<String, Object>> fileList = new ArrayList<>();
-            for (File f : extracted) {
-                Map<String, Object> entry = new HashMap<>();
-                entry.put("name", f.getName());
-                entry.put("size", f.length());
-                entry.put("path", f.getName()); // simple path for download
-                fileList.add(entry);
+            file = input(file, uploadId);
+            if (async) {
+                MultipartFile upload = file;
+                return accepted(jobService.submit(sessionId, "extract-selected", () -> {
+                    MultipartFile saved = archiveService.saveUploads(sessionId, upload)[0];
+                    return () -> extractResult(sessionId,
+                            archiveService.extractSelected(sessionId, saved, paths, password), true);
+                }));
             }
-            response.put("sessionId", sessionId);
-            response.put("status", "complete");
-            response.put("files", fileList);
-            response.put("totalFiles", extracted.size());
-            return ResponseEntity.ok(response);
+            JobScheduler.Ticket ticket = jobScheduler.admit(sessionId);
+            try (ticket) {
+                List<File> extracted = archiveService.extractSelected(sessionId, file, paths, password);
+                progressService.sendComplete(sessionId);
+                return ResponseEntity.ok(extractResult(sessionId, extracted, true));
+            }
+        } catch (JobRejectedException e) {
+            return busy(response, e);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
         } catch (IOException e) {
             response.put("error", e.getMessage());
             return ResponseEntity.internalServerError().body(response);
@@ -149,83 +275,101 @@ public class ArchiveController {
      * Download processed result by session ID
      */
     @GetMapping("/download/{sessionId}")
-    public ResponseEntity<Resource> download(
+    public void download(
             @PathVariable String sessionId,
-            @RequestParam(value = "path", required = false) String pathParam) {
-        try {
-            Path outputDir = archiveService.getSessionOutputDir(sessionId);
-            if (!Files.exists(outputDir)) {
-                return ResponseEntity.notFound().build();
-            }
+            @RequestParam(value = "path", required = false) String pathParam,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Path outputDir = archiveService.getSessionOutputDir(sessionId);
+        sessionRegistry.touch(sessionId);
+        if (!Files.exists(outputDir)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
 
-            File file;
-            if (pathParam != null && !pathParam.isEmpty()) {
-                file = outputDir.resolve(pathParam).toFile();
-                if (!file.exists() || !file.toPath().normalize().startsWith(outputDir.normalize())) {
-                    return ResponseEntity.notFound().build();
-                }
-            } else {
-                // Find first file in output dir
-                Optional<Path> outputFile;
-                try (var stream = Files.list(outputDir)) {
-                    outputFile = stream.filter(Files::isRegularFile).findFirst();
-                }
+        File file;
+        if (pathParam != null && !pathParam.isEmpty()) {
+            file = outputDir.resolve(pathParam).toFile();
+            if (!file.exists() || !file.toPath().normalize().startsWith(outputDir.normalize())) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        } else {
+            // Find first file in output dir
+            Optional<Path> outputFile;
+            try (var stream = Files.list(outputDir)) {
+                outputFile = stream.filter(Files::isRegularFile).findFirst();
+            }
 
-                if (outputFile.isEmpty()) {
-                    return ResponseEntity.notFound().build();
-                }
-                file = outputFile.get().toFile();
+            if (outputFile.isEmpty()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
             }
+            file = outputFile.get().toFile();
+        }
 
-            FileSystemResource resource = new FileSystemResource(file);
+        downloadService.serve(file, "attachment", request, response);
+    }
 
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getName() + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .contentLength(file.length())
-                    .body(resource);
-        } catch (IOException e) {
-            return ResponseEntity.internalServerError().build();
+    /**
+     * Download several results (all by default) as one uncompressed ZIP, streamed without touching disk
+     */
+    @GetMapping("/download-zip/{sessionId}")
+    public void downloadZip(
+            @PathVariable String sessionId,
+            @RequestParam(value = "path", required = false) List<String> paths,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Path outputDir = archiveService.getSessionOutputDir(sessionId);
+        sessionRegistry.touch(sessionId);
+        if (!Files.exists(outputDir)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
+
+        downloadService.serveZip(outputDir, paths, "extracted-" + sessionId + ".zip",
+                outputChecksums.forSession(sessionId), request, response);
     }
 
     /**
-     * Preview endpoint for Peek Inside
+     * Preview endpoint for Peek Inside — streams one entry's inflated bytes from a cached archive handle.
+     * The password of an encrypted archive comes in a header so it stays out of URLs and access logs.
      */
     @GetMapping("/preview/{sessionId}")
     public ResponseEntity<Resource> preview(
             @PathVariable String sessionId,
-            @RequestParam("path") String zipPath) {
+            @RequestParam("path") String zipPath,
+            @RequestHeader(value = PASSWORD_HEADER, required = false) String password) {
         try {
             Path sessionDir = archiveService.getSessionOutputDir(sessionId).getParent();
-            File zipFile = sessionDir.resolve("peek_archive.zip").toFile();
-            if (!zipFile.exists()) {
+            Path zipFile = sessionDir.resolve("peek_archive.zip");
+            sessionRegistry.touch(sessionId);
+            if (!Files.exists(zipFile)) {
                 return ResponseEntity.notFound().build();
             }
 
-            // Extract the single file to output dir for previewing
-            Path outputDir = sessionDir.resolve("output");
-            Files.createDirectories(outputDir);
-
-            net.lingala.zip4j.ZipFile zip = new net.lingala.zip4j.ZipFile(zipFile);
-            zip.extractFile(zipPath, outputDir.toString());
-
-            File extractedFile = outputDir.resolve(zipPath).toFile();
-            if (!extractedFile.exists()) {
-                return ResponseEntity.notFound().build();
-            }
+            IndexedZipFile zip = archiveHandleCache.acquire(sessionId, zipFile);
+            try {
+                CentralDirectoryReader.Entry entry = zip.getEntry(zipPath);
+                if (entry == null || entry.isDirectory()) {
+                    return ResponseEntity.notFound().build();
+                }
 
-            FileSystemResource resource = new FileSystemResource(extractedFile);
+                char[] pw = password != null && !password.isEmpty() ? password.toCharArray() : null;
+                InputStreamResource resource = new InputStreamResource(zip.openEntry(entry, pw));
 
-            String mimeType = Files.probeContentType(extractedFile.toPath());
-            if (mimeType == null)
-                mimeType = MediaType.APPLICATION_OCTET_STREAM_VALUE;
+                String fileName = Paths.get(entry.getName()).getFileName().toString();
+                MediaType mimeType = MediaTypeFactory.getMediaType(fileName)
+                        .orElse(MediaType.APPLICATION_OCTET_STREAM);
 
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(mimeType))
-                    .contentLength(extractedFile.length())
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + extractedFile.getName() + "\"")
-                    .body(resource);
+                return ResponseEntity.ok()
+                        .contentType(mimeType)
+                        .contentLength(entry.getUncompressedSize())
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + fileName + "\"")
+                        .body(resource);
+            } finally {
+                zip.release();
+            }
         } catch (Exception e) {
             return ResponseEntity.internalServerError().build();
         }
@@ -238,4 +382,69 @@ public class ArchiveController {
     public SseEmitter progress(@PathVariable String sessionId) {
         return progressService.createEmitter(sessionId);
     }
+
+    /**
+     * The multipart files, or the committed chunked uploads named by uploadIds
+     */
+    private MultipartFile[] inputs(MultipartFile[] files, List<String> uploadIds) {
+        if (uploadIds != null && !uploadIds.isEmpty())
+            return uploadService.resolve(uploadIds);
+        if (files == null || files.length == 0)
+            throw new IllegalArgumentException("No files uploaded");
+        return files;
+    }
+
+    private MultipartFile input(MultipartFile file, String uploadId) {
+        return inputs(file != null ? new MultipartFile[] { file } : null,
+                uploadId != null ? List.of(uploadId) : null)[0];
+    }
+
+    private Map<String, Object> zipResult(String sessionId, File zipFile) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("sessionId", sessionId);
+        response.put("status", "complete");
+        response.put("fileName", zipFile.getName());
+        response.put("size", zipFile.length());
+        return response;
+    }
+
+    private Map<String, Object> extractResult(String sessionId, List<File> extracted, boolean withPath) {
+        List<Map<String, Object>> fileList = new ArrayList<>();
+        for (File f : extracted) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("name", f.getName());
+            entry.put("size", f.length());
+            if (withPath)
+                entry.put("path", f.getName()); // simple path for download
+            fileList.add(entry);
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("sessionId", sessionId);
+        response.put("status", "complete");
+        response.put("files", fileList);
+        response.put("totalFiles", extracted.size());
+        return response;
+    }
+
+    /**
+     * 202 with the job ID; the client polls /api/jobs/{jobId} or subscribes to its progress
+     */
+    private ResponseEntity<Map<String, Object>> accepted(Job job) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("jobId", job.getJobId());
+        response.put("sessionId", job.getJobId());
+        response.put("status", job.getStatus());
+        response.put("queueDepth", jobScheduler.getQueueDepth());
+        return ResponseEntity.accepted()
+                .header(HttpHeaders.LOCATION, "/api/jobs/" + job.getJobId())
+                .body(response);
+    }
+
+    private ResponseEntity<Map<String, Object>> busy(Map<String, Object> response, JobRejectedException e) {
+        response.put("error", e.getMessage());
+        response.put("queueDepth", e.getQueueDepth());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, "5")
+                .body(response);
+    }
 }
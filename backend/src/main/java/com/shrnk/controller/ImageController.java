@@ -1,16 +1,28 @@
 package com.shrnk.controller;
 
+import com.shrnk.model.Job;
+import com.shrnk.service.DownloadService;
 import com.shrnk.service.ImageService;
+import com.shrnk.service.JobRejectedException;
+import com.shrnk.service.JobScheduler;
+import com.shrnk.service.JobService;
+import com.shrnk.service.OutputChecksums;
 import com.shrnk.service.ProgressService;
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.model.enums.CompressionMethod;
+import com.shrnk.service.ResultCache;
+import com.shrnk.service.SessionRegistry;
+import com.shrnk.service.StorageQuota;
+import com.shrnk.service.UploadService;
+import com.shrnk.util.PooledBytes;
+import com.shrnk.util.SavedUpload;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
@@ -19,6 +31,8 @@ import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 @RestController
 @RequestMapping("/api/image")
@@ -27,68 +41,81 @@ public class ImageController {
     @Value("${shrnk.temp-dir}")
     private String tempDir;
 
+    @Value("${shrnk.image.inline-max-kb:1024}")
+    private long inlineMaxKb;
+
     @Autowired
     private ImageService imageService;
 
     @Autowired
     private ProgressService progressService;
 
+    @Autowired
+    private DownloadService downloadService;
+
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OutputChecksums outputChecksums;
+
+    @Autowired
+    private StorageQuota storageQuota;
+
     /**
-     * Upload images and resize them
+     * Upload images and resize them. With async=true, returns a job ID immediately.
      */
     @PostMapping("/resize")
     public ResponseEntity<Map<String, Object>> resizeImages(
-            @RequestParam("files") MultipartFile[] files,
+            @RequestParam(value = "files", required = false) MultipartFile[] files,
+            @RequestParam(value = "uploadIds", required = false) List<String> uploadIds,
             @RequestParam("resizeOption") String resizeOption,
-            @RequestParam(value = "stripMetadata", defaultValue = "false") boolean stripMetadata) {
+            @RequestParam(value = "stripMetadata", defaultValue = "false") boolean stripMetadata,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
 
         String sessionId = UUID.randomUUID().toString();
         Map<String, Object> response = new HashMap<>();
+        Path outputDir = Paths.get(tempDir, sessionId, "output");
 
         try {
-            Path sessionDir = Paths.get(tempDir, sessionId);
-            Path inputDir = sessionDir.resolve("input");
-            Path outputDir = sessionDir.resolve("output");
-            Files.createDirectories(inputDir);
-            Files.createDirectories(outputDir);
-
-            // Save uploaded files
-            List<File> savedFiles = new ArrayList<>();
-            long totalBytes = 0;
-            for (MultipartFile mf : files) {
-                File saved = inputDir.resolve(mf.getOriginalFilename()).toFile();
-                try (InputStream is = mf.getInputStream();
-                        OutputStream os = new BufferedOutputStream(new FileOutputStream(saved), 8192)) {
-                    byte[] buffer = new byte[8192];
-                    int read;
-                    while ((read = is.read(buffer)) != -1) {
-                        os.write(buffer, 0, read);
-                    }
-                }
-                totalBytes += saved.length();
-                savedFiles.add(saved);
+            files = inputs(files, uploadIds);
+            Map<File, String> hashes = new ConcurrentHashMap<>();
+            if (async) {
+                MultipartFile[] uploads = files;
+                return accepted(jobService.submit(sessionId, "resize", () -> {
+                    List<File> savedFiles = saveUploads(sessionId, uploads, hashes);
+                    return () -> imageResult(sessionId, imageService.processBatch(sessionId, savedFiles, hashes,
+                            resizeOption, outputDir, stripMetadata));
+                }));
             }
+            JobScheduler.Ticket ticket = jobScheduler.admit(sessionId);
+            try (ticket) {
+                List<File> savedFiles = saveUploads(sessionId, files, hashes);
 
-            // Process images directly to outputDir
-            List<File> processed = imageService.processBatch(savedFiles, resizeOption, outputDir, stripMetadata);
-
-            progressService.sendComplete(sessionId);
+                // Process images directly to outputDir
+                List<File> processed = imageService.processBatch(sessionId, savedFiles, hashes, resizeOption,
+                        outputDir, stripMetadata);
 
-            response.put("sessionId", sessionId);
-            response.put("status", "complete");
-            response.put("totalFiles", processed.size());
-
-            List<Map<String, Object>> fileDetails = new ArrayList<>();
-            for (File f : processed) {
-                Map<String, Object> detail = new HashMap<>();
-                detail.put("name", f.getName());
-                detail.put("size", f.length());
-                detail.put("path", f.getName());
-                fileDetails.add(detail);
+                progressService.sendComplete(sessionId);
+                return ResponseEntity.ok(imageResult(sessionId, processed));
             }
-            response.put("files", fileDetails);
-
-            return ResponseEntity.ok(response);
+        } catch (JobRejectedException e) {
+            return busy(response, e);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
         } catch (Exception e) {
             response.put("error", e.getMessage());
             return ResponseEntity.internalServerError().body(response);
@@ -96,102 +123,200 @@ public class ImageController {
     }
 
     /**
-     * Strip metadata from uploaded images
+     * Strip metadata from uploaded images. With async=true, returns a job ID immediately.
      */
     @PostMapping("/strip-metadata")
     public ResponseEntity<Map<String, Object>> stripMetadata(
-            @RequestParam("files") MultipartFile[] files) {
+            @RequestParam(value = "files", required = false) MultipartFile[] files,
+            @RequestParam(value = "uploadIds", required = false) List<String> uploadIds,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
 
         String sessionId = UUID.randomUUID().toString();
         Map<String, Object> response = new HashMap<>();
+        Path outputDir = Paths.get(tempDir, sessionId, "output");
 
         try {
-            Path sessionDir = Paths.get(tempDir, sessionId);
-            Path inputDir = sessionDir.resolve("input");
-            Path outputDir = sessionDir.resolve("output");
-            Files.createDirectories(inputDir);
-            Files.createDirectories(outputDir);
-
-            List<File> savedFiles = new ArrayList<>();
-            for (MultipartFile mf : files) {
-                File saved = inputDir.resolve(mf.getOriginalFilename()).toFile();
-                try (InputStream is = mf.getInputStream();
-                        OutputStream os = new BufferedOutputStream(new FileOutputStream(saved), 8192)) {
-                    byte[] buffer = new byte[8192];
-                    int read;
-                    while ((read = is.read(buffer)) != -1) {
-                        os.write(buffer, 0, read);
-                    }
-                }
-                savedFiles.add(saved);
+            files = inputs(files, uploadIds);
+            Map<File, String> hashes = new ConcurrentHashMap<>();
+            if (async) {
+                MultipartFile[] uploads = files;
+                return accepted(jobService.submit(sessionId, "strip-metadata", () -> {
+                    List<File> savedFiles = saveUploads(sessionId, uploads, hashes);
+                    return () -> imageResult(sessionId, imageService.processBatch(sessionId, savedFiles, hashes,
+                            null, outputDir, true));
+                }));
+            }
+            JobScheduler.Ticket ticket = jobScheduler.admit(sessionId);
+            try (ticket) {
+                List<File> savedFiles = saveUploads(sessionId, files, hashes);
+
+                List<File> processed = imageService.processBatch(sessionId, savedFiles, hashes, null, outputDir,
+                        true);
+
+                progressService.sendComplete(sessionId);
+                return ResponseEntity.ok(imageResult(sessionId, processed));
             }
+        } catch (JobRejectedException e) {
+            return busy(response, e);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (Exception e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
 
-            List<File> processed = imageService.processBatch(savedFiles, null, outputDir, true);
+    /**
+     * Resize one small image sent as the raw request body and return the result in the response.
+     * No session is created: the image is never written to disk, so there is nothing to download.
+     */
+    @PostMapping(value = "/resize", consumes = { MediaType.APPLICATION_OCTET_STREAM_VALUE, "image/*" })
+    public ResponseEntity<?> resizeInline(
+            @RequestParam("resizeOption") String resizeOption,
+            @RequestParam(value = "name", required = false) String name,
+            HttpServletRequest request) {
+        return processInline(request, name, resizeOption, false);
+    }
+
+    /**
+     * Strip metadata from one small image sent as the raw request body, returning the result
+     */
+    @PostMapping(value = "/strip-metadata", consumes = { MediaType.APPLICATION_OCTET_STREAM_VALUE, "image/*" })
+    public ResponseEntity<?> stripMetadataInline(
+            @RequestParam(value = "name", required = false) String name,
+            HttpServletRequest request) {
+        return processInline(request, name, null, true);
+    }
+
+    private ResponseEntity<?> processInline(HttpServletRequest request, String name, String resizeOption,
+            boolean stripMetadata) {
+        Map<String, Object> response = new HashMap<>();
+        long maxBytes = inlineMaxKb << 10;
+
+        try {
+            String fileName = inlineName(name, request.getContentType());
+            if (request.getContentLengthLong() > maxBytes)
+                return tooLarge(response, maxBytes);
 
-            progressService.sendComplete(sessionId);
+            JobScheduler.Ticket ticket = jobScheduler.admit();
 
-            response.put("sessionId", sessionId);
-            response.put("status", "complete");
-            response.put("totalFiles", processed.size());
+            try (ticket) {
+                // A chunked body has no length up front, so read one byte past the limit to catch it
+                PooledBytes data = PooledBytes.read(request.getInputStream(), maxBytes + 1);
+                PooledBytes result = null;
+                try {
+                    if (data.size() > maxBytes)
+                        return tooLarge(response, maxBytes);
+                    if (data.size() == 0)
+                        throw new IllegalArgumentException("No image in request body");
 
-            List<Map<String, Object>> fileDetails = new ArrayList<>();
-            for (File f : processed) {
-                Map<String, Object> detail = new HashMap<>();
-                detail.put("name", f.getName());
-                detail.put("size", f.length());
-                detail.put("path", f.getName());
-                fileDetails.add(detail);
+                    result = imageService.processInMemory(UUID.randomUUID().toString(), data, fileName,
+                            resizeOption, stripMetadata);
+                    String outputName = result != data && imageService.isImage(fileName)
+                            ? imageService.processedName(fileName, resizeOption)
+                            : fileName;
+                    // The converter closes the stream once sent, which returns the buffers to the pool
+                    return ResponseEntity.ok()
+                            .contentType(MediaTypeFactory.getMediaType(outputName)
+                                    .orElse(MediaType.APPLICATION_OCTET_STREAM))
+                            .contentLength(result.size())
+                            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + outputName + "\"")
+                            .body(new InputStreamResource(result.inputStream()));
+                } finally {
+                    if (result != data)
+                        data.close(); // passed through otherwise, and sent as the result
+                }
             }
-            response.put("files", fileDetails);
-            return ResponseEntity.ok(response);
+        } catch (JobRejectedException e) {
+            return busy(response, e);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
         } catch (Exception e) {
             response.put("error", e.getMessage());
             return ResponseEntity.internalServerError().body(response);
         }
     }
 
+    /**
+     * The file name of an inline image, which picks the output format; without one, named after
+     * the image content type
+     */
+    private static String inlineName(String name, String contentType) {
+        if (name != null && !name.isBlank())
+            return Paths.get(name).getFileName().toString();
+        if (contentType != null && contentType.startsWith("image/")) {
+            MediaType type = MediaType.parseMediaType(contentType);
+            return "image." + type.getSubtype();
+        }
+        throw new IllegalArgumentException("A file name is required for " + contentType + " content");
+    }
+
+    private ResponseEntity<?> tooLarge(Map<String, Object> response, long maxBytes) {
+        response.put("error", "Inline images are limited to " + (maxBytes >> 10)
+                + " KB; upload larger files as multipart form data");
+        return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(response);
+    }
+
     /**
      * Download processed images
      */
     @GetMapping("/download/{sessionId}")
-    public ResponseEntity<Resource> download(
+    public void download(
             @PathVariable String sessionId,
-            @RequestParam(value = "path", required = false) String pathParam) {
-        try {
-            Path outputDir = Paths.get(tempDir, sessionId, "output");
-            if (!Files.exists(outputDir)) {
-                return ResponseEntity.notFound().build();
-            }
+            @RequestParam(value = "path", required = false) String pathParam,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Path outputDir = Paths.get(tempDir, sessionId, "output");
+        sessionRegistry.touch(sessionId);
+        if (!Files.exists(outputDir)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
 
-            File file;
-            if (pathParam != null && !pathParam.isEmpty()) {
-                file = outputDir.resolve(pathParam).toFile();
-                if (!file.exists() || !file.toPath().normalize().startsWith(outputDir.normalize())) {
-                    return ResponseEntity.notFound().build();
-                }
-            } else {
-                // Find first file in output dir
-                Optional<Path> outputFile;
-                try (var stream = Files.list(outputDir)) {
-                    outputFile = stream.filter(Files::isRegularFile).findFirst();
-                }
+        File file;
+        if (pathParam != null && !pathParam.isEmpty()) {
+            file = outputDir.resolve(pathParam).toFile();
+            if (!file.exists() || !file.toPath().normalize().startsWith(outputDir.normalize())) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        } else {
+            // Find first file in output dir
+            Optional<Path> outputFile;
+            try (var stream = Files.list(outputDir)) {
+                outputFile = stream.filter(Files::isRegularFile).findFirst();
+            }
 
-                if (outputFile.isEmpty()) {
-                    return ResponseEntity.notFound().build();
-                }
-                file = outputFile.get().toFile();
+            if (outputFile.isEmpty()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
             }
+            file = outputFile.get().toFile();
+        }
 
-            FileSystemResource resource = new FileSystemResource(file);
+        downloadService.serve(file, "attachment", request, response);
+    }
 
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getName() + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .contentLength(file.length())
-                    .body(resource);
-        } catch (IOException e) {
-            return ResponseEntity.internalServerError().build();
+    /**
+     * Download several processed images (all by default) as one uncompressed ZIP, streamed without touching disk
+     */
+    @GetMapping("/download-zip/{sessionId}")
+    public void downloadZip(
+            @PathVariable String sessionId,
+            @RequestParam(value = "path", required = false) List<String> paths,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Path outputDir = Paths.get(tempDir, sessionId, "output");
+        sessionRegistry.touch(sessionId);
+        if (!Files.exists(outputDir)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
+
+        downloadService.serveZip(outputDir, paths, "images-" + sessionId + ".zip",
+                outputChecksums.forSession(sessionId), request, response);
     }
 
     /**
@@ -201,4 +326,96 @@ public class ImageController {
     public SseEmitter progress(@PathVariable String sessionId) {
         return progressService.createEmitter(sessionId);
     }
+
+    /**
+     * Save uploaded files into the session's input directory, recording each file's SHA-256
+     * (for the result cache) in hashes
+     */
+    private List<File> saveUploads(String sessionId, MultipartFile[] files, Map<File, String> hashes)
+            throws IOException {
+        Path sessionDir = Paths.get(tempDir, sessionId);
+        Path inputDir = sessionDir.resolve("input");
+        Files.createDirectories(inputDir);
+        Files.createDirectories(sessionDir.resolve("output"));
+        sessionRegistry.open(sessionId);
+        storageQuota.attach(sessionId);
+
+        // One task per file: concurrent on virtual threads, sequential otherwise
+        List<Callable<File>> saves = new ArrayList<>();
+        for (MultipartFile mf : files) {
+            saves.add(() -> {
+                File saved = inputDir.resolve(mf.getOriginalFilename()).toFile();
+                String hash = null;
+                if (!resultCache.isEnabled()) {
+                    mf.transferTo(saved);
+                } else if (mf instanceof SavedUpload upload) {
+                    // Already on disk: link it, reusing the checksum verified on commit if it had one
+                    mf.transferTo(saved);
+                    hash = upload.getContentHash() != null ? upload.getContentHash()
+                            : ResultCache.hash(upload.getPath());
+                } else {
+                    // Hash while copying the part in, rather than reading the saved file back
+                    try (InputStream in = mf.getInputStream()) {
+                        hash = ResultCache.saveAndHash(in, saved);
+                    }
+                }
+                sessionRegistry.addBytes(sessionId, saved.length());
+                if (hash != null)
+                    hashes.put(saved, hash);
+                return saved;
+            });
+        }
+        return jobScheduler.runBlocking(saves);
+    }
+
+    /**
+     * The multipart files, or the committed chunked uploads named by uploadIds
+     */
+    private MultipartFile[] inputs(MultipartFile[] files, List<String> uploadIds) {
+        if (uploadIds != null && !uploadIds.isEmpty())
+            return uploadService.resolve(uploadIds);
+        if (files == null || files.length == 0)
+            throw new IllegalArgumentException("No files uploaded");
+        return files;
+    }
+
+    private Map<String, Object> imageResult(String sessionId, List<File> processed) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("sessionId", sessionId);
+        response.put("status", "complete");
+        response.put("totalFiles", processed.size());
+
+        List<Map<String, Object>> fileDetails = new ArrayList<>();
+        for (File f : processed) {
+            Map<String, Object> detail = new HashMap<>();
+            detail.put("name", f.getName());
+            detail.put("size", f.length());
+            detail.put("path", f.getName());
+            fileDetails.add(detail);
+        }
+        response.put("files", fileDetails);
+        return response;
+    }
+
+    /**
+     * 202 with the job ID; the client polls /api/jobs/{jobId} or subscribes to its progress
+     */
+    private ResponseEntity<Map<String, Object>> accepted(Job job) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("jobId", job.getJobId());
+        response.put("sessionId", job.getJobId());
+        response.put("status", job.getStatus());
+        response.put("queueDepth", jobScheduler.getQueueDepth());
+        return ResponseEntity.accepted()
+                .header(HttpHeaders.LOCATION, "/api/jobs/" + job.getJobId())
+                .body(response);
+    }
+
+    private ResponseEntity<Map<String, Object>> busy(Map<String, Object> response, JobRejectedException e) {
+        response.put("error", e.getMessage());
+        response.put("queueDepth", e.getQueueDepth());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, "5")
+                .body(response);
+    }
 }
@@ -0,0 +1,93 @@
+package com.shrnk.controller;
+
+import com.shrnk.model.Job;
+import com.shrnk.service.JanitorService;
+import com.shrnk.service.JobScheduler;
+import com.shrnk.service.JobService;
+import com.shrnk.service.ResultCache;
+import com.shrnk.service.SessionRegistry;
+import com.shrnk.service.StorageQuota;
+import com.shrnk.util.BufferPool;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/jobs")
+public class JobController {
+
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private JanitorService janitorService;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private StorageQuota storageQuota;
+
+    /**
+     * Scheduler metrics: running/queued jobs, pool queue depth and wait times, plus result cache hits
+     * and session disk use and reservations
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>(jobScheduler.stats());
+        stats.put("resultCache", resultCache.stats());
+        stats.put("sessions", janitorService.stats());
+        stats.put("storage", storageQuota.stats());
+        stats.put("buffers", BufferPool.stats());
+        return ResponseEntity.ok(stats);
+    }
+
+    /**
+     * Poll a submitted job; once complete, the result is what the synchronous endpoint returns
+     */
+    @GetMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> status(@PathVariable String jobId) {
+        Job job = jobService.get(jobId);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        sessionRegistry.touch(jobId);
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jobId", job.getJobId());
+        response.put("sessionId", job.getJobId());
+        response.put("type", job.getType());
+        response.put("status", job.getStatus());
+        response.put("submittedAt", job.getSubmittedAt());
+        if (job.getStartedAt() > 0)
+            response.put("startedAt", job.getStartedAt());
+        if (job.getFinishedAt() > 0)
+            response.put("finishedAt", job.getFinishedAt());
+        if (job.getResult() != null)
+            response.put("result", job.getResult());
+        if (job.getError() != null)
+            response.put("error", job.getError());
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * SSE progress for a job; a job that already finished gets its final event right away
+     */
+    @GetMapping("/{jobId}/progress")
+    public ResponseEntity<SseEmitter> progress(@PathVariable String jobId) {
+        if (jobService.get(jobId) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(jobService.subscribe(jobId));
+    }
+}
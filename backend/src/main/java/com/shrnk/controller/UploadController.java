@@ -0,0 +1,169 @@
+package com.shrnk.controller;
+
+import com.shrnk.model.Upload;
+import com.shrnk.service.JobRejectedException;
+import com.shrnk.service.UploadService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chunked, resumable uploads. Begin with POST /api/uploads, PUT each chunk as a raw body to
+ * /api/uploads/{uploadId}/chunks/{index}, then POST /api/uploads/{uploadId}/commit.
+ * Committed uploads are passed to the archive and image endpoints by ID (uploadId/uploadIds).
+ */
+@RestController
+@RequestMapping("/api/uploads")
+public class UploadController {
+
+    @Autowired
+    private UploadService uploadService;
+
+    /**
+     * Begin an upload; returns its ID and the chunk layout
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> begin(
+            @RequestParam("fileName") String fileName,
+            @RequestParam("size") long size,
+            @RequestParam(value = "chunkSize", defaultValue = "0") int chunkSize,
+            @RequestParam(value = "sha256", required = false) String sha256) {
+
+        Map<String, Object> response = new HashMap<>();
+        try {
+            Upload upload = uploadService.begin(fileName, size, chunkSize, sha256);
+            return ResponseEntity.status(HttpStatus.CREATED)
+                    .header(HttpHeaders.LOCATION, "/api/uploads/" + upload.getUploadId())
+                    .body(uploadStatus(upload));
+        } catch (JobRejectedException e) {
+            response.put("error", e.getMessage());
+            response.put("queueDepth", e.getQueueDepth());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, "10")
+                    .body(response);
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (IOException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+
+    /**
+     * Upload status, including the chunks already received (a resuming client sends only the rest)
+     */
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<Map<String, Object>> status(@PathVariable String uploadId) {
+        Upload upload = uploadService.get(uploadId);
+        if (upload == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(uploadStatus(upload));
+    }
+
+    /**
+     * Store one chunk; the body is the raw chunk bytes (application/octet-stream). An optional
+     * X-Chunk-Sha256 header is verified, and a chunk already stored with that checksum is skipped
+     * without reading the body. A short or interrupted chunk is not recorded and can simply be re-sent.
+     */
+    @PutMapping(value = "/{uploadId}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Map<String, Object>> putChunk(
+            @PathVariable String uploadId,
+            @PathVariable int index,
+            @RequestHeader(value = "X-Chunk-Sha256", required = false) String checksum,
+            HttpServletRequest request) {
+
+        Upload upload = uploadService.get(uploadId);
+        if (upload == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        try (InputStream body = request.getInputStream()) {
+            boolean written = uploadService.writeChunk(upload, index, checksum, body);
+            response.put("uploadId", uploadId);
+            response.put("index", index);
+            response.put("skipped", !written);
+            response.put("receivedBytes", upload.getReceivedBytes());
+            response.put("complete", upload.isComplete());
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException | EOFException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (IllegalStateException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        } catch (IOException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+
+    /**
+     * Finish an upload once every chunk is in
+     */
+    @PostMapping("/{uploadId}/commit")
+    public ResponseEntity<Map<String, Object>> commit(@PathVariable String uploadId) {
+        Upload upload = uploadService.get(uploadId);
+        if (upload == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        try {
+            uploadService.commit(upload);
+            return ResponseEntity.ok(uploadStatus(upload));
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        } catch (IllegalStateException e) {
+            response.put("error", e.getMessage());
+            response.put("receivedChunks", upload.getReceivedChunks());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        } catch (IOException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+
+    /**
+     * Abandon an upload
+     */
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<Void> abort(@PathVariable String uploadId) {
+        Upload upload = uploadService.get(uploadId);
+        if (upload == null) {
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            uploadService.abort(upload);
+            return ResponseEntity.noContent().build();
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    private Map<String, Object> uploadStatus(Upload upload) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("uploadId", upload.getUploadId());
+        response.put("fileName", upload.getFileName());
+        response.put("size", upload.getSize());
+        response.put("chunkSize", upload.getChunkSize());
+        response.put("chunkCount", upload.getChunkCount());
+        response.put("receivedChunks", upload.getReceivedChunks());
+        response.put("receivedBytes", upload.getReceivedBytes());
+        response.put("status", upload.isCommitted() ? "committed" : "uploading");
+        return response;
+    }
+}
@@ -0,0 +1,97 @@
+package com.shrnk.model;
+
+import java.util.Map;
+
+public class Job {
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String COMPLETE = "complete";
+    public static final String ERROR = "error";
+
+    private String jobId;
+    private String type;
+    private volatile String status;
+    private long submittedAt;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile Map<String, Object> result;
+    private volatile String error;
+
+    public Job() {
+    }
+
+    public Job(String jobId, String type) {
+        this.jobId = jobId;
+        this.type = type;
+        this.status = QUEUED;
+        this.submittedAt = System.currentTimeMillis();
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public void setSubmittedAt(long submittedAt) {
+        this.submittedAt = submittedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(long finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+
+    public Map<String, Object> getResult() {
+        return result;
+    }
+
+    public void setResult(Map<String, Object> result) {
+        this.result = result;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public boolean isFinished() {
+        return COMPLETE.equals(status) || ERROR.equals(status);
+    }
+}
@@ -1,5 +1,7 @@
 package com.shrnk.model;
 
+import java.util.Map;
+
 public class ProgressEvent {
     private String sessionId;
     private double percent;
@@ -8,6 +10,8 @@ public class ProgressEvent {
     private String eta;
     private String status;
     private String currentFile;
+    private long bytesPerSecond;
+    private Map<String, Long> stageRates;
 
     public ProgressEvent() {
     }
@@ -78,4 +82,26 @@ public class ProgressEvent {
     public void setCurrentFile(String currentFile) {
         this.currentFile = currentFile;
     }
+
+    /**
+     * Smoothed throughput of the current phase
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Smoothed throughput per stage (upload, image, compress, extract), in bytes per second
+     */
+    public Map<String, Long> getStageRates() {
+        return stageRates;
+    }
+
+    public void setStageRates(Map<String, Long> stageRates) {
+        this.stageRates = stageRates;
+    }
 }
@@ -0,0 +1,117 @@
+package com.shrnk.model;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A chunked upload in progress. Chunk i covers bytes [i * chunkSize, min(size, (i + 1) * chunkSize)).
+ */
+public class Upload {
+
+    private final String uploadId;
+    private final String fileName;
+    private final long size;
+    private final int chunkSize;
+    private final String sha256;
+    private final Path path;
+    private final BitSet received = new BitSet();
+    private final String[] chunkHashes;
+    private volatile boolean committed;
+
+    public Upload(String uploadId, String fileName, long size, int chunkSize, String sha256, Path path) {
+        this.uploadId = uploadId;
+        this.fileName = fileName;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.sha256 = sha256;
+        this.path = path;
+        this.chunkHashes = new String[getChunkCount()];
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * SHA-256 of the whole file as declared by the client, or null
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getChunkCount() {
+        return Math.toIntExact(Math.max(1, (size + chunkSize - 1) / chunkSize));
+    }
+
+    public long chunkOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    public int chunkLength(int index) {
+        return (int) Math.min(chunkSize, size - chunkOffset(index));
+    }
+
+    public synchronized boolean hasChunk(int index) {
+        return received.get(index);
+    }
+
+    public synchronized String getChunkHash(int index) {
+        return chunkHashes[index];
+    }
+
+    public synchronized void markReceived(int index, String hash) {
+        received.set(index);
+        chunkHashes[index] = hash;
+    }
+
+    /**
+     * Forget a chunk that is about to be overwritten, so a failed rewrite leaves it missing
+     */
+    public synchronized void clearReceived(int index) {
+        received.clear(index);
+        chunkHashes[index] = null;
+    }
+
+    public synchronized boolean isComplete() {
+        return received.cardinality() == getChunkCount();
+    }
+
+    public synchronized List<Integer> getReceivedChunks() {
+        List<Integer> chunks = new ArrayList<>();
+        received.stream().forEach(chunks::add);
+        return chunks;
+    }
+
+    public synchronized long getReceivedBytes() {
+        long total = 0;
+        for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1))
+            total += chunkLength(i);
+        return total;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    public void setCommitted(boolean committed) {
+        this.committed = committed;
+    }
+}
@@ -0,0 +1,84 @@
+package com.shrnk.service;
+
+import com.shrnk.util.IndexedZipFile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-session cache of opened, indexed archives used by /preview.
+ * Least recently used handles are evicted once the cap is reached, and a session's handle is
+ * dropped when the session itself is cleaned up.
+ */
+@Service
+public class ArchiveHandleCache {
+
+    @Value("${shrnk.preview.max-open-archives:64}")
+    private int maxOpenArchives;
+
+    private final Map<String, IndexedZipFile> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Get the indexed archive for a session, opening it on first use.
+     * The returned handle is retained; callers must release() it.
+     */
+    public IndexedZipFile acquire(String sessionId, Path zipPath) throws IOException {
+        synchronized (handles) {
+            IndexedZipFile cached = handles.get(sessionId);
+            if (cached != null && cached.retain())
+                return cached;
+        }
+
+        // Index outside the lock so one large archive doesn't stall previews of other sessions
+        IndexedZipFile opened = IndexedZipFile.open(zipPath);
+        List<IndexedZipFile> evicted = new ArrayList<>();
+        IndexedZipFile result;
+        synchronized (handles) {
+            IndexedZipFile raced = handles.get(sessionId);
+            if (raced != null && raced.retain()) {
+                evicted.add(opened);
+                result = raced;
+            } else {
+                handles.put(sessionId, opened);
+                opened.retain();
+                result = opened;
+                var it = handles.entrySet().iterator();
+                while (handles.size() > maxOpenArchives && it.hasNext()) {
+                    evicted.add(it.next().getValue());
+                    it.remove();
+                }
+            }
+        }
+        evicted.forEach(IndexedZipFile::release);
+        return result;
+    }
+
+    /**
+     * Drop a session's handle (called when the session is cleaned up)
+     */
+    public void evict(String sessionId) {
+        IndexedZipFile removed;
+        synchronized (handles) {
+            removed = handles.remove(sessionId);
+        }
+        if (removed != null)
+            removed.release();
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        List<IndexedZipFile> all;
+        synchronized (handles) {
+            all = new ArrayList<>(handles.values());
+            handles.clear();
+        }
+        all.forEach(IndexedZipFile::release);
+    }
+}
@@ -1,8 +1,14 @@
 package com.shrnk.service;
 
 import com.shrnk.model.FileEntry;
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.model.FileHeader;
+import com.shrnk.util.CentralDirectoryReader;
+import com.shrnk.util.ParallelZipExtractor;
+import com.shrnk.util.ParallelZipWriter;
+import com.shrnk.util.PooledBytes;
+import com.shrnk.util.SavedUpload;
+import com.shrnk.util.StreamUtils;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.model.enums.AesKeyStrength;
 import net.lingala.zip4j.model.enums.CompressionLevel;
@@ -16,13 +22,12 @@ import org.springframework.web.multipart.MultipartFile;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.function.LongConsumer;
 
 @Service
 public class ArchiveService {
 
-    private static final int BUFFER_SIZE = 8192; // 8KB buffered I/O
-
     @Value("${shrnk.temp-dir}")
     private String tempDir;
 
@@ -32,63 +37,171 @@ public class ArchiveService {
     @Autowired
     private ProgressService progressService;
 
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OutputChecksums outputChecksums;
+
+    @Autowired
+    private StorageQuota storageQuota;
+
+    @Value("${shrnk.compression.parallel:true}")
+    private boolean parallelCompression;
+
+    @Value("${shrnk.compression.block-size:1048576}")
+    private int compressionBlockSize;
+
     /**
-     * Create session directory
+     * Create session directory, register the session with the janitor and charge its writes to
+     * the request's disk reservation
      */
     public Path createSessionDir(String sessionId) throws IOException {
         Path dir = Paths.get(tempDir, sessionId);
         Files.createDirectories(dir);
+        sessionRegistry.open(sessionId);
+        storageQuota.attach(sessionId);
         return dir;
     }
 
     /**
-     * Create a ZIP archive from uploaded files
+     * Move uploads into the session so a background job can read them after the request ends
+     */
+    public MultipartFile[] saveUploads(String sessionId, MultipartFile... files) throws IOException {
+        Path uploadDir = createSessionDir(sessionId).resolve("uploads");
+        List<Callable<MultipartFile>> saves = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            MultipartFile file = files[i];
+            if (file instanceof SavedUpload) {
+                // Already on disk beyond the request (a committed chunked upload)
+                saves.add(() -> file);
+                continue;
+            }
+            // Prefix with the index: folder uploads can repeat a file name
+            String name = Paths.get(Objects.requireNonNullElse(file.getOriginalFilename(), "upload"))
+                    .getFileName().toString();
+            Path target = uploadDir.resolve(i + "_" + name);
+            sessionRegistry.addBytes(sessionId, file.getSize());
+            saves.add(() -> SavedUpload.save(file, target));
+        }
+        return jobScheduler.runBlocking(saves).toArray(new MultipartFile[0]);
+    }
+
+    /**
+     * Create a ZIP archive from uploaded files.
+     * Each part is read once and written straight into the archive, resizing images inline.
      */
     public File createZip(String sessionId, MultipartFile[] files, List<String> paths, String password,
             String resizeOption, boolean stripMetadata, String compressionLevelStr) throws IOException {
         Path sessionDir = createSessionDir(sessionId);
-        Path inputDir = sessionDir.resolve("input");
         Path outputDir = sessionDir.resolve("output");
-        Files.createDirectories(inputDir);
         Files.createDirectories(outputDir);
 
-        // Save uploaded files to input dir
+        File zipFile = outputDir.resolve("archive.zip").toFile();
+        try (OutputStream os = new BufferedOutputStream(StreamUtils.counting(new FileOutputStream(zipFile),
+                bytes -> sessionRegistry.addBytes(sessionId, bytes)), StreamUtils.getBufferSize())) {
+            writeZip(sessionId, files, paths, password, resizeOption, stripMetadata, compressionLevelStr, os);
+        }
+        return zipFile;
+    }
+
+    /**
+     * Stream uploaded files into a ZIP written to the given output stream.
+     * Unencrypted DEFLATE archives are compressed on all cores; AES archives go through zip4j.
+     */
+    public void writeZip(String sessionId, MultipartFile[] files, List<String> paths, String password,
+            String resizeOption, boolean stripMetadata, String compressionLevelStr, OutputStream out)
+            throws IOException {
+        ZipParameters baseParams = buildZipParameters(password, compressionLevelStr);
+        char[] pw = toPassword(password);
+
+        if (parallelCompression && pw == null && baseParams.getCompressionMethod() == CompressionMethod.DEFLATE) {
+            try (ParallelZipWriter zip = new ParallelZipWriter(out, baseParams.getCompressionLevel().getLevel(),
+                    jobScheduler.cpuExecutor(sessionId), jobScheduler.getCpuThreads(), compressionBlockSize)) {
+                writeEntries(sessionId, files, paths, resizeOption, stripMetadata, zip::putEntry);
+            }
+            return;
+        }
+
+        try (ZipOutputStream zos = new ZipOutputStream(out, pw)) {
+            writeEntries(sessionId, files, paths, resizeOption, stripMetadata, (name, in, size) -> {
+                ZipParameters params = new ZipParameters(baseParams);
+                params.setFileNameInZip(name);
+                params.setEntrySize(size);
+                zos.putNextEntry(params);
+                StreamUtils.copy(in, zos);
+                zos.closeEntry();
+            });
+        }
+    }
+
+    /**
+     * Feed each uploaded part (resized inline if requested) to the archive sink
+     */
+    private void writeEntries(String sessionId, MultipartFile[] files, List<String> paths, String resizeOption,
+            boolean stripMetadata, EntrySink sink) throws IOException {
+        boolean processImages = (resizeOption != null && !resizeOption.isEmpty()) || stripMetadata;
+
         long totalBytes = 0;
-        List<File> savedFiles = new ArrayList<>();
         for (MultipartFile mf : files) {
-            File saved = inputDir.resolve(mf.getOriginalFilename()).toFile();
-            try (InputStream is = mf.getInputStream();
-                    OutputStream os = new BufferedOutputStream(new FileOutputStream(saved), BUFFER_SIZE)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int read;
-                while ((read = is.read(buffer)) != -1) {
-                    os.write(buffer, 0, read);
-                }
-            }
-            totalBytes += saved.length();
-            savedFiles.add(saved);
+            totalBytes += mf.getSize();
         }
 
-        // Process images if resize option provided
-        List<File> filesToZip;
-        if (resizeOption != null && !resizeOption.isEmpty()) {
-            Path processedDir = sessionDir.resolve("processed");
-            Files.createDirectories(processedDir);
-            filesToZip = imageService.processBatch(savedFiles, resizeOption, processedDir, stripMetadata);
-        } else if (stripMetadata) {
-            Path processedDir = sessionDir.resolve("processed");
-            Files.createDirectories(processedDir);
-            filesToZip = imageService.processBatch(savedFiles, null, processedDir, true);
-        } else {
-            filesToZip = savedFiles;
+        // Progress counts input bytes as they are consumed: by the resizer for images, by the
+        // archive for everything else. Resized images feed the compress rate only.
+        progressService.begin(sessionId, "Compressing", totalBytes);
+        LongConsumer imageMeter = processImages ? progressService.meter(sessionId, ProgressService.STAGE_IMAGE) : null;
+        LongConsumer compressMeter = progressService.meter(sessionId, ProgressService.STAGE_COMPRESS);
+        LongConsumer compressRate = progressService.rateMeter(sessionId, ProgressService.STAGE_COMPRESS);
+
+        for (int i = 0; i < files.length; i++) {
+            MultipartFile mf = files[i];
+            String fileName = mf.getOriginalFilename();
+            progressService.setCurrentFile(sessionId, fileName);
+
+            PooledBytes processed = null;
+            try {
+                if (processImages && imageService.isImage(fileName)) {
+                    try (InputStream is = StreamUtils.counting(mf.getInputStream(), imageMeter)) {
+                        processed = imageService.resizeInStream(is, fileName, resizeOption);
+                    }
+                }
+
+                // Reconstruct folder paths inside the zip if provided
+                String entryName;
+                if (paths != null && i < paths.size() && paths.get(i) != null && !paths.get(i).isEmpty()) {
+                    entryName = paths.get(i);
+                } else if (processed != null) {
+                    entryName = imageService.processedName(fileName, resizeOption);
+                } else {
+                    entryName = fileName;
+                }
+
+                // Non-images (or undecodable ones) are copied as-is
+                try (InputStream is = processed != null
+                        ? StreamUtils.counting(processed.inputStream(), compressRate)
+                        : StreamUtils.counting(mf.getInputStream(), compressMeter)) {
+                    sink.putEntry(entryName, is, processed != null ? processed.size() : mf.getSize());
+                }
+            } finally {
+                if (processed != null)
+                    processed.close();
+            }
         }
+    }
 
-        // Create ZIP
-        File zipFile = outputDir.resolve("archive.zip").toFile();
-        ZipFile zip = password != null && !password.isEmpty()
-                ? new ZipFile(zipFile, password.toCharArray())
-                : new ZipFile(zipFile);
+    @FunctionalInterface
+    private interface EntrySink {
+        void putEntry(String name, InputStream in, long size) throws IOException;
+    }
 
+    /**
+     * Build ZIP entry parameters from the requested compression level and password
+     */
+    private ZipParameters buildZipParameters(String password, String compressionLevelStr) {
         ZipParameters params = new ZipParameters();
         params.setCompressionMethod(CompressionMethod.DEFLATE);
 
@@ -112,26 +225,7 @@ public class ArchiveService {
             params.setEncryptionMethod(EncryptionMethod.AES);
             params.setAesKeyStrength(AesKeyStrength.KEY_STRENGTH_256);
         }
-
-        long processedBytes = 0;
-        for (int i = 0; i < filesToZip.size(); i++) {
-            File f = filesToZip.get(i);
-
-            // Reconstruct folder paths inside the zip if provided
-            if (paths != null && i < paths.size() && paths.get(i) != null && !paths.get(i).isEmpty()) {
-                params.setFileNameInZip(paths.get(i));
-            } else {
-                params.setFileNameInZip(f.getName());
-            }
-
-            zip.addFile(f, params);
-            processedBytes += f.length();
-            progressService.sendProgress(sessionId, processedBytes, totalBytes,
-                    "Compressing", f.getName());
-        }
-
-        progressService.sendComplete(sessionId);
-        return zipFile;
+        return params;
     }
 
     /**
@@ -144,65 +238,36 @@ public class ArchiveService {
         Files.createDirectories(inputDir);
         Files.createDirectories(outputDir);
 
-        // Save uploaded zip
+        // Move the spooled upload into the session (a rename on the same file system)
         File zipInput = inputDir.resolve(zipMultipart.getOriginalFilename()).toFile();
-        try (InputStream is = zipMultipart.getInputStream();
-                OutputStream os = new BufferedOutputStream(new FileOutputStream(zipInput), BUFFER_SIZE)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = is.read(buffer)) != -1) {
-                os.write(buffer, 0, read);
-            }
-        }
-
-        ZipFile zip = password != null && !password.isEmpty()
-                ? new ZipFile(zipInput, password.toCharArray())
-                : new ZipFile(zipInput);
-
-        zip.extractAll(outputDir.toString());
-        progressService.sendComplete(sessionId);
+        zipMultipart.transferTo(zipInput);
+        sessionRegistry.addBytes(sessionId, zipInput.length());
 
-        // Return list of extracted files
-        List<File> extracted = new ArrayList<>();
-        try (var stream = Files.walk(outputDir)) {
-            stream.filter(Files::isRegularFile).forEach(p -> extracted.add(p.toFile()));
-        }
+        List<File> extracted = newExtractor(sessionId).extract(zipInput, toPassword(password), outputDir, header -> true,
+                extractionProgress(sessionId));
         return extracted;
     }
 
     /**
-     * Peek inside a ZIP — return file tree without extracting
+     * Peek inside a ZIP — return file tree without extracting.
+     * The upload is moved (not rewritten) into the session for later previews, and only its
+     * central directory is read.
      */
     public List<FileEntry> peekZip(String sessionId, MultipartFile zipMultipart, String password) throws IOException {
         Path sessionDir = createSessionDir(sessionId);
         Path tempFile = sessionDir.resolve("peek_archive.zip");
-        Files.createDirectories(sessionDir);
-
-        try (InputStream is = zipMultipart.getInputStream();
-                OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile.toFile()), BUFFER_SIZE)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = is.read(buffer)) != -1) {
-                os.write(buffer, 0, read);
-            }
-        }
 
-        ZipFile zip = password != null && !password.isEmpty()
-                ? new ZipFile(tempFile.toFile(), password.toCharArray())
-                : new ZipFile(tempFile.toFile());
+        // A spooled part is renamed into place rather than copied
+        zipMultipart.transferTo(tempFile.toFile());
+        sessionRegistry.addBytes(sessionId, Files.size(tempFile));
 
         List<FileEntry> entries = new ArrayList<>();
-        for (FileHeader header : zip.getFileHeaders()) {
+        for (CentralDirectoryReader.Entry entry : CentralDirectoryReader.read(tempFile)) {
             entries.add(new FileEntry(
-                    header.getFileName(),
-                    header.getFileName(),
-                    header.getUncompressedSize(),
-                    header.isDirectory()));
-        }
-
-        try {
-            zip.close();
-        } catch (Exception ignored) {
+                    entry.getName(),
+                    entry.getName(),
+                    entry.getUncompressedSize(),
+                    entry.isDirectory()));
         }
         return entries;
     }
@@ -218,37 +283,70 @@ public class ArchiveService {
         Files.createDirectories(inputDir);
         Files.createDirectories(outputDir);
 
-        // Save uploaded zip
+        // Move the spooled upload into the session (a rename on the same file system)
         File zipInput = inputDir.resolve(zipMultipart.getOriginalFilename()).toFile();
-        try (InputStream is = zipMultipart.getInputStream();
-                OutputStream os = new BufferedOutputStream(new FileOutputStream(zipInput), BUFFER_SIZE)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = is.read(buffer)) != -1) {
-                os.write(buffer, 0, read);
+        zipMultipart.transferTo(zipInput);
+        sessionRegistry.addBytes(sessionId, zipInput.length());
+
+        // A selected directory brings along everything beneath it
+        Set<String> selected = new HashSet<>(selectedPaths);
+        Set<String> matched = new HashSet<>();
+        List<File> extracted = newExtractor(sessionId).extract(zipInput, toPassword(password), outputDir, header -> {
+            String name = header.getFileName();
+            boolean hit = false;
+            for (String path : selected) {
+                if (name.equals(path) || (path.endsWith("/") && name.startsWith(path))) {
+                    matched.add(path);
+                    hit = true;
+                }
             }
+            return hit;
+        }, extractionProgress(sessionId));
+
+        for (String path : selected) {
+            if (!matched.contains(path))
+                throw new ZipException("No file found with name " + path + " in zip file");
         }
+        return extracted;
+    }
+
+    /**
+     * Report extraction progress and disk use byte by byte as entries are written
+     */
+    private ParallelZipExtractor.Listener extractionProgress(String sessionId) {
+        LongConsumer meter = progressService.meter(sessionId, ProgressService.STAGE_EXTRACT);
+        return new ParallelZipExtractor.Listener() {
+            @Override
+            public void onStart(long totalBytes) throws IOException {
+                // The real expansion is known now; hold exactly that (or wait for it) before writing
+                storageQuota.expect(sessionId, totalBytes);
+                progressService.begin(sessionId, "Extracting", totalBytes);
+            }
 
-        ZipFile zip = password != null && !password.isEmpty()
-                ? new ZipFile(zipInput, password.toCharArray())
-                : new ZipFile(zipInput);
+            @Override
+            public void onEntry(String name) {
+                progressService.setCurrentFile(sessionId, name);
+            }
 
-        for (String path : selectedPaths) {
-            zip.extractFile(path, outputDir.toString());
-        }
+            @Override
+            public void onBytes(long bytes) {
+                meter.accept(bytes);
+                sessionRegistry.addBytes(sessionId, bytes);
+            }
 
-        try {
-            zip.close();
-        } catch (Exception ignored) {
-        }
+            @Override
+            public void onWritten(Path file, long crc) throws IOException {
+                outputChecksums.record(sessionId, file, crc);
+            }
+        };
+    }
 
-        List<File> extracted = new ArrayList<>();
-        try (var stream = Files.walk(outputDir)) {
-            stream.filter(Files::isRegularFile).forEach(p -> extracted.add(p.toFile()));
-        }
+    private ParallelZipExtractor newExtractor(String sessionId) {
+        return new ParallelZipExtractor(jobScheduler.ioExecutor(sessionId));
+    }
 
-        progressService.sendComplete(sessionId);
-        return extracted;
+    private static char[] toPassword(String password) {
+        return password != null && !password.isEmpty() ? password.toCharArray() : null;
     }
 
     /**
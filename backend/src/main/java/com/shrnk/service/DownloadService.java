@@ -0,0 +1,368 @@
+package com.shrnk.service;
+
+import com.shrnk.util.StoredZip;
+import com.shrnk.util.StreamUtils;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Serves session output files with RFC 7233 byte ranges (single and multi-range), strong ETag and
+ * Last-Modified validators, and RFC 7232 conditional requests. The ETags are strong so clients can
+ * resume with If-Range: outputs are written once and never modified in place, so size and
+ * modification time identify their bytes.
+ * File bytes go out through Tomcat's sendfile when the connector supports it, otherwise in large
+ * pooled-buffer chunks through {@link StreamUtils}. Several outputs can also be served as one
+ * uncompressed ZIP generated on the fly ({@link StoredZip}), with the same range support.
+ */
+@Service
+public class DownloadService {
+
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final int MAX_RANGES = 32;
+
+    /**
+     * A byte range, inclusive at both ends
+     */
+    private record Range(long start, long end) {
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    /**
+     * Writes count bytes of an entity starting at position
+     */
+    private interface Body {
+        void write(long position, long count, OutputStream out) throws IOException;
+    }
+
+    /**
+     * What is served: validators, type and bytes. file is set when the bytes are a file's, for sendfile.
+     */
+    private record Entity(String name, long length, long lastModified, String etag, String contentType,
+                          File file, Body body) {
+    }
+
+    /**
+     * Write a file to the response, honouring Range and conditional request headers
+     */
+    public void serve(File file, String disposition, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long length = file.length();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(file.lastModified()) + "\"";
+        Body body = (position, count, out) -> {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                StreamUtils.copy(ch, position, count, out);
+            }
+        };
+        serve(new Entity(file.getName(), length, file.lastModified(), etag,
+                MediaType.APPLICATION_OCTET_STREAM_VALUE, file, body), disposition, request, response);
+    }
+
+    /**
+     * Write some of a session's output files (relative paths; all of them when none are given) as
+     * an uncompressed ZIP built while it is sent. Its length and validators come from the files'
+     * names, sizes and modification times, so Range requests resume it like a file on disk.
+     * The files' CRCs come from checksums where known, and are added to it where not.
+     */
+    public void serveZip(Path outputDir, List<String> paths, String fileName, StoredZip.Checksums checksums,
+                         HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path root = outputDir.normalize();
+        List<Path> files = new ArrayList<>();
+        if (paths == null || paths.isEmpty()) {
+            try (Stream<Path> stream = Files.walk(root)) {
+                stream.filter(Files::isRegularFile)
+                        .sorted(Comparator.comparing(p -> root.relativize(p).toString()))
+                        .forEach(files::add);
+            }
+        } else {
+            for (String path : paths) {
+                Path file = root.resolve(path).normalize();
+                if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                if (!files.contains(file))
+                    files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        List<StoredZip.Entry> entries = new ArrayList<>();
+        MessageDigest digest = sha256();
+        long lastModified = 0;
+        for (Path file : files) {
+            String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+            long size = Files.size(file);
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            entries.add(new StoredZip.Entry(name, file, size, modified));
+            digest.update((name + "\0" + size + "\0" + modified + "\0").getBytes(StandardCharsets.UTF_8));
+            lastModified = Math.max(lastModified, modified);
+        }
+
+        StoredZip zip = new StoredZip(entries, checksums);
+        String etag = "\"z" + HexFormat.of().formatHex(digest.digest(), 0, 16) + "\"";
+        serve(new Entity(fileName, zip.length(), lastModified, etag, "application/zip", null, zip::write),
+                "attachment", request, response);
+    }
+
+    private void serve(Entity entity, String disposition, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long length = entity.length();
+        long lastModified = entity.lastModified() / 1000 * 1000; // HTTP dates have second precision
+        String etag = entity.etag();
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                disposition + "; filename=\"" + entity.name() + "\"");
+
+        // RFC 7232 section 6: evaluate preconditions in order
+        String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null) {
+            if (!matchesAny(ifMatch, etag, false)) {
+                response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+                return;
+            }
+        } else {
+            long ifUnmodifiedSince = dateHeader(request, HttpHeaders.IF_UNMODIFIED_SINCE);
+            if (ifUnmodifiedSince >= 0 && lastModified > ifUnmodifiedSince) {
+                response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+                return;
+            }
+        }
+
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (matchesAny(ifNoneMatch, etag, true)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        } else {
+            long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+            if (ifModifiedSince >= 0 && lastModified <= ifModifiedSince) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && !ifRangeMatches(request, etag, lastModified))
+            rangeHeader = null;
+
+        List<Range> ranges = rangeHeader != null ? parseRanges(rangeHeader, length) : null;
+        boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+
+        if (ranges != null && ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return;
+        }
+
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(entity.contentType());
+            response.setContentLengthLong(length);
+            if (!head)
+                sendRange(entity, new Range(0, length - 1), request, response);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            Range r = ranges.get(0);
+            response.setContentType(entity.contentType());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(r, length));
+            response.setContentLengthLong(r.length());
+            if (!head)
+                sendRange(entity, r, request, response);
+            return;
+        }
+
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (Range r : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + entity.contentType() + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(r, length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + r.length();
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head)
+            return;
+
+        OutputStream out = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            Range r = ranges.get(i);
+            out.write(partHeaders.get(i));
+            entity.body().write(r.start(), r.length(), out);
+        }
+        out.write(closing);
+        out.flush();
+    }
+
+    /**
+     * Send one contiguous region, via sendfile when it is a file and the connector offers it
+     */
+    private void sendRange(Entity entity, Range r, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        if (r.length() <= 0)
+            return;
+        if (entity.file() != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, entity.file().getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTR, r.start());
+            request.setAttribute(SENDFILE_END_ATTR, r.end() + 1);
+            return;
+        }
+        entity.body().write(r.start(), r.length(), response.getOutputStream());
+    }
+
+    /**
+     * Parse a Range header. Returns null if it is absent or malformed (serve the full entity),
+     * an empty list if no range is satisfiable, and otherwise the ranges, merged where they overlap.
+     */
+    private static List<Range> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes="))
+            return null;
+
+        List<Range> ranges = new ArrayList<>();
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+                return null;
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0)
+                        continue;
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (!last.isEmpty() && Long.parseLong(last) < start)
+                        return null;
+                }
+                if (start < length && start <= end)
+                    ranges.add(new Range(start, end));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        if (ranges.size() > 1) {
+            ranges.sort(Comparator.comparingLong(Range::start));
+            List<Range> merged = new ArrayList<>();
+            Range current = ranges.get(0);
+            for (int i = 1; i < ranges.size(); i++) {
+                Range next = ranges.get(i);
+                if (next.start() <= current.end() + 1) {
+                    current = new Range(current.start(), Math.max(current.end(), next.end()));
+                } else {
+                    merged.add(current);
+                    current = next;
+                }
+            }
+            merged.add(current);
+            ranges = merged;
+        }
+
+        // Too many disjoint ranges is not worth the multipart overhead; send the whole file
+        return ranges.size() > MAX_RANGES ? null : ranges;
+    }
+
+    private static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null)
+            return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return strongMatch(ifRange, etag); // If-Range requires a strong comparison
+        long date = dateHeader(request, HttpHeaders.IF_RANGE);
+        return date >= 0 && date == lastModified;
+    }
+
+    /**
+     * Compare against a list of entity tags; weak comparison ignores W/ prefixes, strong
+     * comparison never matches a weak tag
+     */
+    private static boolean matchesAny(String header, String etag, boolean weak) {
+        if (header.trim().equals("*"))
+            return true;
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (weak ? opaque(tag).equals(opaque(etag)) : strongMatch(tag, etag))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean strongMatch(String tag, String etag) {
+        return !tag.startsWith("W/") && tag.equals(etag);
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static String contentRange(Range r, long length) {
+        return "bytes " + r.start() + "-" + r.end() + "/" + length;
+    }
+}
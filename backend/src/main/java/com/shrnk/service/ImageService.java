@@ -1,136 +1,526 @@
 package com.shrnk.service;
 
 import net.coobird.thumbnailator.Thumbnails;
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.metadata.Metadata;
+import net.coobird.thumbnailator.filters.ImageFilter;
+import net.coobird.thumbnailator.util.exif.ExifFilterUtils;
+import net.coobird.thumbnailator.util.exif.ExifUtils;
+import net.coobird.thumbnailator.util.exif.Orientation;
+import com.shrnk.util.MetadataStripper;
+import com.shrnk.util.PooledBytes;
+import com.shrnk.util.StreamUtils;
+import com.shrnk.util.TiledImageResizer;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.*;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongConsumer;
 
 @Service
 public class ImageService {
 
-    private static final int BUFFER_SIZE = 8192; // 8KB
+    private static final Logger log = LoggerFactory.getLogger(ImageService.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024; // marker segments; pixel data is copied by StreamUtils
+    private static final float JPEG_QUALITY = 0.9f;
+    private static final Set<String> FORMATS_WITH_ALPHA = Set.of("png", "gif");
+    // Writers that read rows top to bottom, so a banded resize can stream into them
+    private static final Set<String> STREAMED_FORMATS = Set.of("jpg", "png");
+
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private ProgressService progressService;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Value("${shrnk.image.decode-oversample:2}")
+    private int decodeOversample;
+
+    @Value("${shrnk.image.memory-budget-mb:256}")
+    private long memoryBudgetMb;
+
+    // The memory budget in KB, shared by every decode in flight
+    private Semaphore memory;
+
+    @PostConstruct
+    public void init() {
+        memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, memoryBudgetMb << 10), true);
+    }
+
+    /**
+     * Resize an image during the stream (for in-stream zip processing), into pooled buffers the
+     * caller must close. A null or empty resize option only drops metadata: losslessly for JPEG and
+     * PNG, by re-encoding at full size for other formats. Returns null if the data is not an image.
+     */
+    public PooledBytes resizeInStream(InputStream inputStream, String fileName, String resizeOption)
+            throws IOException {
+        if ((resizeOption == null || resizeOption.isEmpty()) && MetadataStripper.supports(fileName)) {
+            // Strip only: drop metadata segments losslessly, no decode
+            PooledBytes out = new PooledBytes();
+            try {
+                Set<String> removed = MetadataStripper.strip(inputStream, out.outputStream());
+                log.debug("Stripped {} from {}", removed, fileName);
+                if (removed != null)
+                    return out;
+            } catch (IOException | RuntimeException e) {
+                out.close();
+                throw e;
+            }
+            out.close();
+            return null;
+        }
+
+        String format = getExtension(fileName);
+        try (ImageInputStream in = new MemoryCacheImageInputStream(inputStream);
+                Decoded decoded = decode(in, resizeOption, format)) {
+            if (decoded == null)
+                return null; // not an image
+            return encode(decoded.image, format);
+        }
+    }
 
     /**
-     * Resize an image by percentage (e.g. 50 = 50%)
+     * Process batch of files in parallel on the session's share of the CPU pool.
+     * Images in flight share the memory budget; each waits for its part before decoding.
+     * Files with a content hash (SHA-256 hex, taken while the upload was saved) are served
+     * from the result cache when the same content was processed with the same settings before.
+     * Progress advances by each input's size as it finishes: a decoder reads its whole input
+     * before the slow part starts, so counting its reads would only front-load the bar.
      */
-    public File resizeByPercent(File inputFile, int percent, Path outputDir) throws IOException {
-        String outputName = addSuffix(inputFile.getName(), "_" + percent + "pct");
-        File outputFile = outputDir.resolve(outputName).toFile();
+    public List<File> processBatch(String sessionId, List<File> inputFiles, Map<File, String> contentHashes,
+            String resizeOption, Path outputDir, boolean stripMeta) throws IOException {
+        Executor cpu = jobScheduler.cpuExecutor(sessionId);
 
-        double scale = percent / 100.0;
-        Thumbnails.of(inputFile)
-                .scale(scale)
-                .outputQuality(0.9)
-                .toFile(outputFile);
+        long totalBytes = 0;
+        for (File file : inputFiles)
+            totalBytes += file.length();
+        progressService.begin(sessionId, "Processing", totalBytes);
+        LongConsumer meter = progressService.meter(sessionId, ProgressService.STAGE_IMAGE);
 
-        return outputFile;
+        List<FutureTask<File>> tasks = new ArrayList<>();
+        for (File file : inputFiles) {
+            FutureTask<File> task = new FutureTask<>(() -> {
+                progressService.setCurrentFile(sessionId, file.getName());
+                File result = processFile(file, contentHashes.get(file), resizeOption, outputDir, stripMeta);
+                meter.accept(file.length());
+                sessionRegistry.addBytes(sessionId, result.length());
+                return result;
+            });
+            tasks.add(task);
+            cpu.execute(task);
+        }
+
+        List<File> results = new ArrayList<>();
+        try {
+            for (FutureTask<File> task : tasks) {
+                results.add(task.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing images");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw new IOException("Image processing failed", e.getCause());
+        } finally {
+            for (FutureTask<File> task : tasks) {
+                task.cancel(true);
+            }
+        }
+        return results;
     }
 
     /**
-     * Resize an image to specific dimensions
+     * Process one small image entirely in memory on the CPU pool and return the output. Nothing
+     * touches the temp directory or the result cache; otherwise it behaves like a batch of one:
+     * non-images and no-op settings pass through, returning data itself.
      */
-    public File resizeToExact(File inputFile, int width, int height, Path outputDir) throws IOException {
-        String outputName = addSuffix(inputFile.getName(), "_" + width + "x" + height);
-        File outputFile = outputDir.resolve(outputName).toFile();
+    public PooledBytes processInMemory(String jobId, PooledBytes data, String fileName, String resizeOption,
+            boolean stripMeta) throws IOException {
+        boolean resize = resizeOption != null && !resizeOption.isEmpty();
+        if (!isImage(fileName) || (!resize && !stripMeta))
+            return data;
 
-        Thumbnails.of(inputFile)
-                .size(width, height)
-                .keepAspectRatio(true)
-                .outputQuality(0.9)
-                .toFile(outputFile);
+        FutureTask<PooledBytes> task = new FutureTask<>(() -> transform(data, fileName, resize, resizeOption));
+        jobScheduler.cpuExecutor(jobId).execute(task);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing image");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            if (e.getCause() instanceof IllegalArgumentException iae)
+                throw iae;
+            throw new IOException("Image processing failed", e.getCause());
+        }
+    }
 
-        return outputFile;
+    /**
+     * In-memory counterpart of {@link #transform(File, boolean, String, File)}
+     */
+    private PooledBytes transform(PooledBytes data, String fileName, boolean resize, String resizeOption)
+            throws IOException {
+        if (!resize && MetadataStripper.supports(fileName)) {
+            PooledBytes out = new PooledBytes();
+            Set<String> removed;
+            try {
+                removed = MetadataStripper.strip(data.inputStream(), out.outputStream());
+            } catch (IOException | RuntimeException e) {
+                out.close();
+                throw e;
+            }
+            if (removed != null) {
+                log.debug("Stripped {} from {}", removed, fileName);
+                return out;
+            }
+            out.close();
+        }
+
+        String format = getExtension(fileName);
+        try (ImageInputStream in = data.imageInputStream(); Decoded decoded = decode(in, resizeOption, format)) {
+            if (decoded == null) {
+                if (resize)
+                    throw new IOException("Unsupported image format: " + fileName);
+                return data; // nothing we can strip
+            }
+            return encode(decoded.image, format);
+        }
+    }
+
+    /**
+     * Encode into pooled buffers
+     */
+    private PooledBytes encode(RenderedImage image, String format) throws IOException {
+        PooledBytes out = new PooledBytes();
+        try (ImageOutputStream ios = out.imageOutputStream()) {
+            encode(image, format, ios);
+            return out;
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    private File processFile(File file, String contentHash, String resizeOption, Path outputDir, boolean stripMeta)
+            throws IOException {
+        boolean resize = resizeOption != null && !resizeOption.isEmpty();
+        if (!isImage(file.getName()) || (!resize && !stripMeta)) {
+            // Non-image files, or nothing to do — just copy
+            File copy = outputDir.resolve(file.getName()).toFile();
+            StreamUtils.copy(file.toPath(), copy.toPath());
+            return copy;
+        }
+
+        File processed = outputDir.resolve(processedName(file.getName(), resizeOption)).toFile();
+        // The output format follows the extension, and the oversample changes the pixels
+        String cacheKey = contentHash != null && resultCache.isEnabled()
+                ? ResultCache.key(contentHash, "image", resizeOption, getExtension(file.getName()), decodeOversample)
+                : null;
+        if (cacheKey != null && resultCache.fetch(cacheKey, processed.toPath()))
+            return processed;
+
+        File result = transform(file, resize, resizeOption, processed);
+        if (cacheKey != null && result.equals(processed))
+            resultCache.put(cacheKey, processed.toPath());
+        return result;
+    }
+
+    /**
+     * Resize and/or strip one image into processed
+     */
+    private File transform(File file, boolean resize, String resizeOption, File processed) throws IOException {
+        // Never write through an existing output: it may be a link into the cache, and
+        // FileImageOutputStream doesn't truncate
+        Files.deleteIfExists(processed.toPath());
+        if (!resize && MetadataStripper.supports(file.getName()) && stripLosslessly(file, processed))
+            return processed;
+
+        String format = getExtension(processed.getName());
+        try (ImageInputStream in = new FileImageInputStream(file); Decoded decoded = decode(in, resizeOption, format)) {
+            if (decoded == null) {
+                if (resize)
+                    throw new IOException("Unsupported image format: " + file.getName());
+                // Not decodable, so there is nothing we can strip; pass it through
+                StreamUtils.copy(file.toPath(), processed.toPath());
+                return processed;
+            }
+            try (ImageOutputStream out = new FileImageOutputStream(processed)) {
+                encode(decoded.image, format, out);
+            }
+        }
+        return processed;
     }
 
     /**
-     * Resize an image during the stream (for in-stream zip processing)
+     * Copy a JPEG or PNG without its metadata segments, leaving the pixel data bit-identical.
+     * Returns false if the content is not actually a JPEG or PNG.
      */
-    public byte[] resizeInStream(InputStream inputStream, String fileName, String resizeOption) throws IOException {
-        BufferedImage original = ImageIO.read(inputStream);
-        if (original == null)
-            return null; // not an image
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        if (resizeOption.contains("x")) {
-            String[] parts = resizeOption.split("x");
-            int w = Integer.parseInt(parts[0]);
-            int h = Integer.parseInt(parts[1]);
-            Thumbnails.of(original).size(w, h).keepAspectRatio(true).outputFormat(getExtension(fileName))
-                    .toOutputStream(baos);
-        } else {
+    private boolean stripLosslessly(File file, File processed) throws IOException {
+        Set<String> removed;
+        try (InputStream in = new FileInputStream(file);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(processed), BUFFER_SIZE)) {
+            removed = MetadataStripper.strip(in, out);
+        }
+        if (removed == null) {
+            Files.delete(processed.toPath());
+            return false;
+        }
+        log.debug("Stripped {} from {}", removed, file.getName());
+        return true;
+    }
+
+    /**
+     * An image ready to encode, with what it holds until then: its reader (a banded image is still
+     * decoding from it) and its part of the memory budget
+     */
+    private final class Decoded implements Closeable {
+        final RenderedImage image;
+        private final ImageReader reader;
+        private final int permits;
+
+        Decoded(RenderedImage image, ImageReader reader, int permits) {
+            this.image = image;
+            this.reader = reader;
+            this.permits = permits;
+        }
+
+        @Override
+        public void close() {
+            Runnable release = () -> {
+                reader.dispose();
+                memory.release(permits);
+            };
+            if (image instanceof TiledImageResizer.BandedImage banded)
+                banded.close(release);
+            else
+                release.run();
+        }
+    }
+
+    /**
+     * Decode an image once and apply its EXIF orientation and the resize option, for encoding as
+     * format. When downscaling far enough, the decoder is asked for a subsampled image, so the full
+     * resolution raster is never allocated. Images that would still decode to more than the memory
+     * budget are resized band by band while they are encoded. Waits until the memory it needs is
+     * free. Returns null if no reader recognises the data.
+     */
+    private Decoded decode(ImageInputStream in, String resizeOption, String format) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext())
+            return null;
+
+        ImageReader reader = readers.next();
+        int permits = 0;
+        TiledImageResizer.BandedImage banded = null;
+        try {
+            // Not seek-forward-only: banded decoding of some formats reads the image more than once
+            reader.setInput(in, false, false);
+            Orientation orientation = readOrientation(reader);
+            ImageFilter rotate = orientation != null && orientation != Orientation.TOP_LEFT
+                    ? ExifFilterUtils.getFilterForOrientation(orientation)
+                    : null;
+
+            // The target box applies to the upright image, but rotation happens after resizing
+            boolean resize = resizeOption != null && !resizeOption.isEmpty();
+            boolean swap = isQuarterTurn(orientation);
+            int srcW = reader.getWidth(0);
+            int srcH = reader.getHeight(0);
+            Dimension target = resize ? targetSize(srcW, srcH, resizeOption, swap) : new Dimension(srcW, srcH);
+            int factor = resize ? subsampleFactor(srcW, srcH, target) : 1;
+
+            long budget = memoryBudgetMb << 20;
+            long decodedBytes = TiledImageResizer.decodedBytes((srcW + factor - 1) / factor,
+                    (srcH + factor - 1) / factor);
+            long outputBytes = TiledImageResizer.decodedBytes(target.width, target.height);
+            if (decodedBytes > budget) {
+                // Rotating, or a writer that doesn't read top to bottom, needs the whole output at once
+                boolean whole = rotate != null || !STREAMED_FORMATS.contains(format);
+                long needed = budget / 4 + (whole ? outputBytes * 2 : 0);
+                if (needed > budget)
+                    throw new IOException("Image too large to process: " + target.width + "x" + target.height);
+                permits = acquire(needed);
+                banded = TiledImageResizer.resize(reader, target.width, target.height, factor,
+                        FORMATS_WITH_ALPHA.contains(format), budget / 4, jobScheduler.decoderExecutor());
+                if (!whole)
+                    return new Decoded(banded, reader, permits);
+                BufferedImage image = new BufferedImage(banded.getColorModel(), banded.copyData(null), false, null);
+                banded.close();
+                return new Decoded(rotate != null ? rotate.apply(image) : image, reader, permits);
+            }
+
+            permits = acquire(Math.min(budget, decodedBytes + 2 * outputBytes));
+            if (!resize) {
+                BufferedImage image = reader.read(0);
+                return new Decoded(rotate != null ? rotate.apply(image) : image, reader, permits);
+            }
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (factor > 1)
+                param.setSourceSubsampling(factor, factor, 0, 0);
+            BufferedImage image = reader.read(0, param);
+
+            Thumbnails.Builder<BufferedImage> builder = Thumbnails.of(image);
+            if (factor > 1) {
+                builder.forceSize(target.width, target.height);
+            } else if (resizeOption.contains("x")) {
+                String[] parts = resizeOption.split("x");
+                int w = Integer.parseInt(parts[0]);
+                int h = Integer.parseInt(parts[1]);
+                if (swap)
+                    builder.size(h, w);
+                else
+                    builder.size(w, h);
+                builder.keepAspectRatio(true);
+            } else {
+                builder.scale(Integer.parseInt(resizeOption) / 100.0);
+            }
+            if (rotate != null)
+                builder.addFilter(rotate);
+            return new Decoded(builder.asBufferedImage(), reader, permits);
+        } catch (IOException | RuntimeException | Error e) {
+            // A banded decoder may still be using the reader; it is freed once the decoder stops
+            new Decoded(banded, reader, permits).close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for bytes of the memory budget (at most all of it); returns the permits taken
+     */
+    private int acquire(long bytes) throws IOException {
+        int permits = (int) Math.min(memoryBudgetMb << 10, Math.max(1, (bytes + 1023) >> 10));
+        try {
+            memory.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        }
+        return permits;
+    }
+
+    /**
+     * Output size for a resize option, computed the way Thumbnailator does from the full-size source
+     */
+    private static Dimension targetSize(int srcW, int srcH, String resizeOption, boolean swap) {
+        if (!resizeOption.contains("x")) {
             double scale = Integer.parseInt(resizeOption) / 100.0;
-            Thumbnails.of(original).scale(scale).outputFormat(getExtension(fileName)).toOutputStream(baos);
+            return new Dimension(Math.max(1, (int) Math.round(srcW * scale)),
+                    Math.max(1, (int) Math.round(srcH * scale)));
         }
+        String[] parts = resizeOption.split("x");
+        int w = Integer.parseInt(swap ? parts[1] : parts[0]);
+        int h = Integer.parseInt(swap ? parts[0] : parts[1]);
+        double sourceRatio = (double) srcW / srcH;
+        if (sourceRatio > (double) w / h)
+            h = (int) Math.round(w / sourceRatio);
+        else
+            w = (int) Math.round(h * sourceRatio);
+        return new Dimension(Math.max(1, w), Math.max(1, h));
+    }
 
-        return baos.toByteArray();
+    /**
+     * Largest decoder subsampling step that still leaves decodeOversample source pixels per output
+     * pixel in each direction, so the final resample can still filter and avoid aliasing
+     */
+    private int subsampleFactor(int srcW, int srcH, Dimension target) {
+        int oversample = Math.max(1, decodeOversample);
+        int factor = Math.min(srcW / (target.width * oversample), srcH / (target.height * oversample));
+        return Math.max(1, factor);
     }
 
     /**
-     * Process batch of files in parallel using parallel streams
+     * Encode an image once with no stream or image metadata, so EXIF, XMP, IPTC, text chunks and
+     * comments are dropped at the writer
      */
-    public List<File> processBatch(List<File> inputFiles, String resizeOption, Path outputDir, boolean stripMeta) {
-        return inputFiles.parallelStream()
-                .map(file -> {
-                    try {
-                        File processed;
-                        if (isImage(file.getName())) {
-                            if (resizeOption != null && !resizeOption.isEmpty()) {
-                                if (resizeOption.contains("x")) {
-                                    String[] parts = resizeOption.split("x");
-                                    processed = resizeToExact(file, Integer.parseInt(parts[0]),
-                                            Integer.parseInt(parts[1]), outputDir);
-                                } else {
-                                    processed = resizeByPercent(file, Integer.parseInt(resizeOption), outputDir);
-                                }
-                            } else {
-                                // Copy without resize
-                                processed = outputDir.resolve(file.getName()).toFile();
-                                Files.copy(file.toPath(), processed.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                            }
-
-                            if (stripMeta) {
-                                stripExifData(processed);
-                            }
-
-                            return processed;
-                        } else {
-                            // Non-image files — just copy
-                            processed = outputDir.resolve(file.getName()).toFile();
-                            Files.copy(file.toPath(), processed.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                            return processed;
-                        }
-                    } catch (IOException e) {
-                        throw new UncheckedIOException(e);
-                    }
-                })
-                .collect(Collectors.toList());
+    private void encode(RenderedImage image, String format, ImageOutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext())
+            throw new IOException("No image writer for format " + format);
+
+        if (image.getColorModel().hasAlpha() && !FORMATS_WITH_ALPHA.contains(format)) {
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawRenderedImage(image, new AffineTransform());
+            g.dispose();
+            image = rgb;
+        }
+
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals("jpg")) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (UncheckedIOException e) {
+            throw e.getCause(); // from a banded image's decoder
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static Orientation readOrientation(ImageReader reader) {
+        try {
+            return ExifUtils.getExifOrientation(reader, 0);
+        } catch (IOException | RuntimeException e) {
+            return null; // unreadable metadata; treat as upright
+        }
+    }
+
+    private static boolean isQuarterTurn(Orientation orientation) {
+        return orientation == Orientation.LEFT_TOP || orientation == Orientation.RIGHT_TOP
+                || orientation == Orientation.RIGHT_BOTTOM || orientation == Orientation.LEFT_BOTTOM;
     }
 
     /**
-     * Strip EXIF metadata from an image by re-encoding it
+     * Name of the output file produced for the given resize option
      */
-    public void stripExifData(File imageFile) throws IOException {
-        if (!isImage(imageFile.getName()))
-            return;
-
-        BufferedImage image = ImageIO.read(imageFile);
-        if (image == null)
-            return;
-
-        String ext = getExtension(imageFile.getName());
-        // Re-write the image without metadata
-        BufferedImage clean = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-        clean.getGraphics().drawImage(image, 0, 0, null);
-        ImageIO.write(clean, ext, imageFile);
+    public String processedName(String fileName, String resizeOption) {
+        if (resizeOption == null || resizeOption.isEmpty())
+            return fileName;
+        if (resizeOption.contains("x"))
+            return addSuffix(fileName, "_" + resizeOption);
+        return addSuffix(fileName, "_" + resizeOption + "pct");
     }
 
     public boolean isImage(String fileName) {
@@ -1,7 +1,12 @@
 package com.shrnk.service;
 
+import com.shrnk.model.Job;
+import com.shrnk.util.StreamUtils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
@@ -9,9 +14,19 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Keeps the temp directory bounded. Each tick expires the sessions the {@link SessionRegistry}
+ * reports as idle for the maximum age, and when free space drops below the watermark, evicts the
+ * least recently used idle sessions until the expected free space is back above it. Deletes run
+ * on a dedicated thread; the session is unregistered first so nothing picks it up again.
+ */
 @Service
 public class JanitorService {
 
@@ -20,45 +35,215 @@ public class JanitorService {
     @Value("${shrnk.temp-dir}")
     private String tempDir;
 
-    @Value("${shrnk.janitor.max-age-minutes}")
-    private int maxAgeMinutes;
+    @Value("${shrnk.janitor.min-free-mb:1024}")
+    private long minFreeMb;
 
-    @Scheduled(fixedRateString = "${shrnk.janitor.interval}")
-    public void cleanupExpiredSessions() {
-        log.info("[Janitor] Running cleanup cycle...");
+    @Value("${shrnk.janitor.min-idle-seconds:60}")
+    private long minIdleSeconds;
 
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private StorageQuota storageQuota;
+
+    @Autowired
+    private ArchiveHandleCache archiveHandleCache;
+
+    @Autowired
+    private JobService jobService;
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private ProgressService progressService;
+
+    @Autowired
+    private OutputChecksums outputChecksums;
+
+    private ExecutorService deleter;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong freedBytes = new AtomicLong();
+    private volatile FileStore store;
+    private boolean starved; // scheduler thread only
+
+    @PostConstruct
+    public void init() {
+        deleter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "shrnk-janitor");
+            t.setDaemon(true);
+            return t;
+        });
+        deleter.execute(this::adoptExisting);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        deleter.shutdownNow();
+    }
+
+    /**
+     * Register the sessions a previous run left behind, dated by their last modification
+     */
+    private void adoptExisting() {
         Path tempPath = Paths.get(tempDir);
-        if (!Files.exists(tempPath)) {
-            log.info("[Janitor] Temp directory does not exist, skipping.");
+        if (!Files.isDirectory(tempPath))
             return;
+        int adopted = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempPath, Files::isDirectory)) {
+            for (Path sessionDir : stream) {
+                long lastModified = Files.getLastModifiedTime(sessionDir).toMillis();
+                SessionRegistry.Session session = sessionRegistry.open(sessionDir.getFileName().toString(),
+                        lastModified);
+                sessionRegistry.addBytes(session.getSessionId(), sizeOf(sessionDir));
+                adopted++;
+            }
+        } catch (IOException e) {
+            log.error("[Janitor] Could not index {}", tempPath, e);
         }
+        if (adopted > 0)
+            log.info("[Janitor] Adopted {} existing session(s)", adopted);
+    }
 
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempPath)) {
-            int cleaned = 0;
-            for (Path sessionDir : stream) {
-                if (!Files.isDirectory(sessionDir))
-                    continue;
+    @Scheduled(fixedDelayString = "${shrnk.janitor.tick-ms:1000}")
+    public void tick() {
+        long now = System.currentTimeMillis();
+        for (SessionRegistry.Session session : sessionRegistry.expire(now)) {
+            if (isBusy(session.getSessionId())) {
+                sessionRegistry.postpone(session, now + TimeUnit.SECONDS.toMillis(minIdleSeconds));
+                continue;
+            }
+            delete(session, "expired");
+            expired.incrementAndGet();
+        }
+        relievePressure(now);
+    }
 
-                BasicFileAttributes attrs = Files.readAttributes(sessionDir, BasicFileAttributes.class);
-                Instant created = attrs.creationTime().toInstant();
+    /**
+     * Evict idle sessions, least recently used first, until free space (counting deletes still
+     * in progress, less the space promised to admitted and waiting jobs) is back above the watermark
+     */
+    private void relievePressure(long now) {
+        long free;
+        try {
+            free = fileStore().getUsableSpace();
+        } catch (IOException e) {
+            return; // temp dir not created yet
+        }
+        long shortfall = (minFreeMb << 20) + storageQuota.getDemand() - free - pendingBytes.get();
+        if (shortfall <= 0) {
+            starved = false;
+            return;
+        }
+
+        long idleBefore = now - TimeUnit.SECONDS.toMillis(minIdleSeconds);
+        for (SessionRegistry.Session session : sessionRegistry.leastRecentlyUsed()) {
+            if (shortfall <= 0)
+                break;
+            if (session.getLastAccess() > idleBefore)
+                break; // the rest are in use or just finished
+            if (isBusy(session.getSessionId()))
+                continue;
+            shortfall -= session.getBytes();
+            delete(session, "evicted, " + StreamUtils.formatBytes(free) + " free");
+            evicted.incrementAndGet();
+        }
+        if (shortfall > 0 && !starved)
+            log.warn("[Janitor] Free space {} is below {} MB and no idle session is left to evict",
+                    StreamUtils.formatBytes(free), minFreeMb);
+        starved = shortfall > 0;
+    }
 
-                if (created.plus(maxAgeMinutes, ChronoUnit.MINUTES).isBefore(Instant.now())) {
-                    deleteRecursively(sessionDir);
-                    cleaned++;
-                    log.info("[Janitor] Cleaned session: {}", sessionDir.getFileName());
-                }
+    /**
+     * A queued or running background job, or a request holding the session (a synchronous job for
+     * the life of its admission ticket, or a chunk being written)
+     */
+    private boolean isBusy(String sessionId) {
+        if (sessionRegistry.isHeld(sessionId))
+            return true;
+        Job job = jobService.get(sessionId);
+        return job != null && (Job.QUEUED.equals(job.getStatus()) || Job.RUNNING.equals(job.getStatus()));
+    }
+
+    /**
+     * Unregister a session now and delete its directory in the background
+     */
+    private void delete(SessionRegistry.Session session, String reason) {
+        if (!sessionRegistry.remove(session))
+            return;
+        String sessionId = session.getSessionId();
+        archiveHandleCache.evict(sessionId);
+        jobService.forget(sessionId);
+        uploadService.forget(sessionId);
+        progressService.forget(sessionId);
+        outputChecksums.forget(sessionId);
+
+        long bytes = session.getBytes();
+        pendingBytes.addAndGet(bytes);
+        deleter.execute(() -> {
+            try {
+                long freed = deleteRecursively(Paths.get(tempDir, sessionId));
+                freedBytes.addAndGet(freed);
+                log.info("[Janitor] Removed session {} ({}, {})", sessionId, StreamUtils.formatBytes(freed), reason);
+            } catch (NoSuchFileException e) {
+                // Never wrote anything
+            } catch (IOException e) {
+                log.error("[Janitor] Could not remove session {}", sessionId, e);
+            } finally {
+                pendingBytes.addAndGet(-bytes);
             }
-            log.info("[Janitor] Cleanup complete. Removed {} session(s).", cleaned);
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessionRegistry.size());
+        stats.put("sessionBytes", sessionRegistry.totalBytes());
+        stats.put("expired", expired.get());
+        stats.put("evicted", evicted.get());
+        stats.put("freedBytes", freedBytes.get());
+        stats.put("pendingDeleteBytes", pendingBytes.get());
+        try {
+            stats.put("usableBytes", fileStore().getUsableSpace());
         } catch (IOException e) {
-            log.error("[Janitor] Error during cleanup", e);
+            // Temp dir not created yet
         }
+        stats.put("minFreeBytes", minFreeMb << 20);
+        return stats;
+    }
+
+    private FileStore fileStore() throws IOException {
+        FileStore fs = store;
+        if (fs == null)
+            store = fs = Files.getFileStore(Paths.get(tempDir));
+        return fs;
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        AtomicLong total = new AtomicLong();
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                total.addAndGet(attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return total.get();
     }
 
-    private void deleteRecursively(Path path) throws IOException {
+    /**
+     * Delete a directory tree and return the bytes freed
+     */
+    private static long deleteRecursively(Path path) throws IOException {
+        AtomicLong freed = new AtomicLong();
         Files.walkFileTree(path, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                 Files.delete(file);
+                freed.addAndGet(attrs.size());
                 return FileVisitResult.CONTINUE;
             }
 
@@ -68,5 +253,6 @@ public class JanitorService {
                 return FileVisitResult.CONTINUE;
             }
         });
+        return freed.get();
     }
 }
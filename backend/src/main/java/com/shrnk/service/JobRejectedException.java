@@ -0,0 +1,20 @@
+package com.shrnk.service;
+
+/**
+ * Thrown when a job can't be admitted because the scheduler's queue is full
+ */
+public class JobRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int queueDepth;
+
+    public JobRejectedException(String message, int queueDepth) {
+        super(message);
+        this.queueDepth = queueDepth;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+}
@@ -0,0 +1,423 @@
+package com.shrnk.service;
+
+import com.shrnk.util.FairExecutor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Job execution subsystem.
+ * Admission control caps how many jobs run at once and how many may wait; past that, jobs are
+ * rejected (HTTP 429). Jobs are either run on the request thread once admitted, or submitted to
+ * run in the background on a job runner thread; both kinds wait in one queue and get slots in
+ * arrival order. Work inside a job runs on dedicated CPU and I/O
+ * pools that round-robin between sessions, so one large batch can't starve other users.
+ * In virtual-thread mode, job runners and blocking I/O tasks (upload saves, SSE sends) run on
+ * virtual threads, while CPU and I/O pool work stays on the bounded platform thread pools.
+ */
+@Service
+public class JobScheduler {
+
+    @Value("${shrnk.jobs.cpu-threads:0}")
+    private int cpuThreads;
+
+    @Value("${shrnk.jobs.io-threads:0}")
+    private int ioThreads;
+
+    @Value("${shrnk.jobs.max-in-flight:8}")
+    private int maxInFlight;
+
+    @Value("${shrnk.jobs.max-queued:32}")
+    private int maxQueued;
+
+    @Value("${shrnk.jobs.queue-timeout-seconds:300}")
+    private long queueTimeoutSeconds;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    private FairExecutor cpuPool;
+    private FairExecutor ioPool;
+    private ExecutorService runners;
+    private ExecutorService blocking;
+    private ExecutorService decoders;
+
+    // Jobs waiting for a slot, in arrival order; a finishing job hands its slot straight to the head
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private int freeSlots; // guarded by queue
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalAdmissionWaitNanos = new AtomicLong();
+
+    /**
+     * A queued job: a request thread to wake, or a background job to start. A background place is
+     * taken before its job exists, so a slot may reach it first and wait for the job.
+     */
+    private static final class Waiter {
+        final boolean background;
+        final CountDownLatch granted = new CountDownLatch(1);
+        Runnable job; // guarded by queue
+        boolean holdsSlot; // guarded by queue
+
+        Waiter(boolean background) {
+            this.background = background;
+        }
+    }
+
+    /**
+     * A place for a background job, taken before its inputs are saved so that a full queue turns
+     * the request away before any upload is moved. Exactly one of start or cancel must follow.
+     */
+    public class Reservation {
+        private final Waiter waiter; // null when a slot was free right away
+        private boolean used; // guarded by queue
+
+        private Reservation(Waiter waiter) {
+            this.waiter = waiter;
+        }
+
+        /**
+         * Run the job as soon as the reserved place reaches a slot
+         */
+        public void start(Runnable job) {
+            synchronized (queue) {
+                if (used)
+                    throw new IllegalStateException("Reservation already used");
+                used = true;
+                if (waiter != null && !waiter.holdsSlot) {
+                    waiter.job = job;
+                    return;
+                }
+            }
+            JobScheduler.this.start(job);
+        }
+
+        /**
+         * Give the place (or the slot it already reached) to the next job
+         */
+        public void cancel() {
+            synchronized (queue) {
+                if (used)
+                    return;
+                used = true;
+                if (waiter != null && queue.remove(waiter))
+                    return;
+            }
+            releaseSlot();
+        }
+    }
+
+    /**
+     * A held admission slot; closing it lets the next queued job start. A request's ticket also
+     * holds its session, so the janitor leaves the session alone while the request runs.
+     */
+    public class Ticket implements AutoCloseable {
+        private final SessionRegistry.Hold hold; // null without a session, or for a background Job
+        private boolean closed;
+
+        private Ticket(SessionRegistry.Hold hold) {
+            this.hold = hold;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                if (hold != null)
+                    hold.close();
+                releaseSlot();
+            }
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        cpuPool = new FairExecutor("cpu", cpuThreads > 0 ? cpuThreads : cores, daemonThreads("shrnk-cpu-"));
+        ioPool = new FairExecutor("io", ioThreads > 0 ? ioThreads : cores * 2, daemonThreads("shrnk-io-"));
+        freeSlots = maxInFlight;
+        if (virtualThreads) {
+            runners = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("shrnk-job-", 1).factory());
+            blocking = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("shrnk-blocking-", 1).factory());
+        } else {
+            runners = Executors.newCachedThreadPool(daemonThreads("shrnk-job-"));
+        }
+        decoders = Executors.newCachedThreadPool(daemonThreads("shrnk-decoder-"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        runners.shutdownNow();
+        if (blocking != null)
+            blocking.shutdownNow();
+        decoders.shutdownNow();
+        cpuPool.shutdown();
+        ioPool.shutdown();
+    }
+
+    /**
+     * Wait for an admission slot for a request working in the given session. Rejects immediately
+     * when the wait queue is already full.
+     */
+    public Ticket admit(String sessionId) throws IOException {
+        awaitSlot();
+        return new Ticket(sessionRegistry.hold(sessionId));
+    }
+
+    /**
+     * Wait for an admission slot for a request that keeps nothing on disk
+     */
+    public Ticket admit() throws IOException {
+        awaitSlot();
+        return new Ticket(null);
+    }
+
+    private void awaitSlot() throws IOException {
+        long start = System.nanoTime();
+        Waiter waiter = enqueue(false);
+        if (waiter != null) {
+            boolean granted;
+            try {
+                granted = waiter.granted.await(queueTimeoutSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!withdraw(waiter))
+                    releaseSlot(); // granted just as we were interrupted
+                throw new InterruptedIOException("Interrupted while waiting for a job slot");
+            }
+            if (!granted && withdraw(waiter)) {
+                rejected.incrementAndGet();
+                throw new JobRejectedException("Timed out waiting for a job slot", getQueueDepth());
+            }
+        }
+        admitted.incrementAndGet();
+        totalAdmissionWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Take a place for a background job, to be started once its inputs are ready.
+     * Shares the in-flight limit and the wait queue with {@link #admit}.
+     */
+    public Reservation reserve() {
+        return new Reservation(enqueue(true));
+    }
+
+    /**
+     * Take a free slot if nobody is waiting for one (returns null), or join the end of the queue.
+     * Rejects when the queue is full.
+     */
+    private Waiter enqueue(boolean background) {
+        synchronized (queue) {
+            if (freeSlots > 0 && queue.isEmpty()) {
+                freeSlots--;
+                return null;
+            }
+            if (queue.size() >= maxQueued) {
+                rejected.incrementAndGet();
+                throw new JobRejectedException("Server is busy, please retry shortly", queue.size());
+            }
+            Waiter waiter = new Waiter(background);
+            queue.addLast(waiter);
+            return waiter;
+        }
+    }
+
+    /**
+     * Leave the queue; returns false if the waiter was already given a slot
+     */
+    private boolean withdraw(Waiter waiter) {
+        synchronized (queue) {
+            return queue.remove(waiter);
+        }
+    }
+
+    /**
+     * Run a job on a runner thread; the caller has already taken its slot
+     */
+    private void start(Runnable job) {
+        admitted.incrementAndGet();
+        runners.execute(() -> {
+            Ticket ticket = new Ticket(null);
+            try (ticket) {
+                job.run();
+            }
+        });
+    }
+
+    private void releaseSlot() {
+        Waiter next;
+        Runnable job;
+        synchronized (queue) {
+            next = queue.pollFirst();
+            if (next == null) {
+                freeSlots++;
+                return;
+            }
+            job = next.job;
+            if (next.background && job == null) {
+                next.holdsSlot = true; // its inputs are still being saved
+                return;
+            }
+        }
+        if (job != null)
+            start(job);
+        else
+            next.granted.countDown();
+    }
+
+    /**
+     * Executor for CPU-bound work (compression, image processing), fair per session
+     */
+    public Executor cpuExecutor(String sessionId) {
+        return cpuPool.forKey(sessionId);
+    }
+
+    /**
+     * Executor for I/O-heavy work (extraction, file writes), fair per session
+     */
+    public Executor ioExecutor(String sessionId) {
+        return ioPool.forKey(sessionId);
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Executor for short blocking I/O tasks; only available in virtual-thread mode
+     */
+    public Executor blockingExecutor() {
+        return blocking;
+    }
+
+    /**
+     * Executor for image decoders that feed a job's encoder as it runs. Unbounded, since an encoder
+     * on a pool thread waits for its decoder, and on platform threads, since native decoding would
+     * pin a virtual thread's carrier.
+     */
+    public Executor decoderExecutor() {
+        return decoders;
+    }
+
+    /**
+     * Run blocking I/O tasks (one per file) and return their results in order.
+     * In virtual-thread mode each task gets its own virtual thread; otherwise they run one after
+     * another on the calling thread.
+     */
+    public <T> List<T> runBlocking(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (!virtualThreads || tasks.size() < 2) {
+            for (Callable<T> task : tasks) {
+                results.add(call(task));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(blocking.submit(task));
+            }
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for I/O tasks");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw new IOException("I/O task failed", e.getCause());
+        } finally {
+            for (Future<T> f : futures) {
+                f.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private static <T> T call(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("I/O task failed", e);
+        }
+    }
+
+    public int getCpuThreads() {
+        return cpuPool.getThreads();
+    }
+
+    public int getIoThreads() {
+        return ioPool.getThreads();
+    }
+
+    /**
+     * Number of jobs currently waiting for a slot
+     */
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Queue depth, wait time and pool metrics
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> jobs = new LinkedHashMap<>();
+        long count = admitted.get();
+        jobs.put("maxInFlight", maxInFlight);
+        synchronized (queue) {
+            jobs.put("running", maxInFlight - freeSlots);
+            jobs.put("queueDepth", queue.size());
+        }
+        jobs.put("maxQueued", maxQueued);
+        jobs.put("admitted", count);
+        jobs.put("rejected", rejected.get());
+        jobs.put("avgAdmissionWaitMs", count > 0 ? totalAdmissionWaitNanos.get() / count / 1_000_000.0 : 0.0);
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("virtualThreads", virtualThreads);
+        stats.put("jobs", jobs);
+        stats.put("cpuPool", cpuPool.stats());
+        stats.put("ioPool", ioPool.stats());
+        return stats;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,120 @@
+package com.shrnk.service;
+
+import com.shrnk.model.Job;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of background jobs. A submitted job is queued on the {@link JobScheduler} and the
+ * caller gets its ID straight back; clients then poll the job or subscribe to its progress events.
+ * The job ID is the session ID, so downloads and progress use the same key as synchronous jobs.
+ */
+@Service
+public class JobService {
+
+    private static final Logger log = LoggerFactory.getLogger(JobService.class);
+
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Autowired
+    private ProgressService progressService;
+
+    @Autowired
+    private StorageQuota storageQuota;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * The body of a job; returns the same result map the synchronous endpoint would
+     */
+    @FunctionalInterface
+    public interface Work {
+        Map<String, Object> run() throws IOException;
+    }
+
+    /**
+     * Readies a job on the request thread (typically by saving its uploads) and returns its body
+     */
+    @FunctionalInterface
+    public interface Setup {
+        Work prepare() throws IOException;
+    }
+
+    /**
+     * Queue work to run in the background. The place in the queue is taken before setup runs, so
+     * when the queue is full, {@link JobRejectedException} is thrown before any input is saved.
+     * The session's disk reservation is held until the job ends.
+     */
+    public Job submit(String sessionId, String type, Setup setup) throws IOException {
+        JobScheduler.Reservation reservation = jobScheduler.reserve();
+        Work work;
+        try {
+            work = setup.prepare();
+        } catch (IOException | RuntimeException e) {
+            reservation.cancel();
+            throw e;
+        }
+
+        Job job = new Job(sessionId, type);
+        jobs.put(sessionId, job);
+        storageQuota.retain(sessionId);
+        reservation.start(() -> {
+            try {
+                run(job, work);
+            } finally {
+                storageQuota.release(sessionId);
+            }
+        });
+        return job;
+    }
+
+    private void run(Job job, Work work) {
+        job.setStartedAt(System.currentTimeMillis());
+        job.setStatus(Job.RUNNING);
+        try {
+            Map<String, Object> result = work.run();
+            job.setResult(result);
+            job.setFinishedAt(System.currentTimeMillis());
+            job.setStatus(Job.COMPLETE);
+            progressService.sendComplete(job.getJobId());
+        } catch (Exception e) {
+            log.warn("[Jobs] {} job {} failed: {}", job.getType(), job.getJobId(), e.getMessage());
+            job.setError(e.getMessage());
+            job.setFinishedAt(System.currentTimeMillis());
+            job.setStatus(Job.ERROR);
+            progressService.sendError(job.getJobId(), e.getMessage());
+        }
+    }
+
+    public Job get(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Subscribe to a job's progress. If the job has already finished, the final event is sent at once.
+     */
+    public SseEmitter subscribe(String jobId) {
+        SseEmitter emitter = progressService.createEmitter(jobId);
+        Job job = jobs.get(jobId);
+        if (job != null && Job.COMPLETE.equals(job.getStatus()))
+            progressService.sendComplete(jobId);
+        else if (job != null && Job.ERROR.equals(job.getStatus()))
+            progressService.sendError(jobId, job.getError());
+        return emitter;
+    }
+
+    /**
+     * Drop a job record once its session has been cleaned up
+     */
+    public void forget(String jobId) {
+        jobs.remove(jobId);
+    }
+}
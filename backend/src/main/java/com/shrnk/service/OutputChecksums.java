@@ -0,0 +1,59 @@
+package com.shrnk.service;
+
+import com.shrnk.util.StoredZip;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CRC-32s of session output files, kept beside the session so a generated ZIP download
+ * ({@link StoredZip}) doesn't read every file once for its CRC and again to send it. Extraction
+ * records them as it writes, from the archive's own headers; other outputs are recorded the first
+ * time a download computes them. Keyed by path, size and modification time, so a replaced file is
+ * never matched; a session's records are dropped when the session is cleaned up.
+ */
+@Service
+public class OutputChecksums {
+
+    private final Map<String, Map<String, Long>> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Record the CRC of a file a job has just finished writing
+     */
+    public void record(String sessionId, Path file, long crc) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        StoredZip.Entry entry = new StoredZip.Entry(file.toString(), file, attrs.size(),
+                attrs.lastModifiedTime().toMillis());
+        forSession(sessionId).put(entry, crc);
+    }
+
+    /**
+     * The session's records, for a download to read and add to
+     */
+    public StoredZip.Checksums forSession(String sessionId) {
+        Map<String, Long> crcs = sessions.computeIfAbsent(sessionId, k -> new ConcurrentHashMap<>());
+        return new StoredZip.Checksums() {
+            @Override
+            public Long get(StoredZip.Entry entry) {
+                return crcs.get(entry.key());
+            }
+
+            @Override
+            public void put(StoredZip.Entry entry, long crc) {
+                crcs.put(entry.key(), crc);
+            }
+        };
+    }
+
+    /**
+     * Drop a session's records (called when the session is cleaned up)
+     */
+    public void forget(String sessionId) {
+        sessions.remove(sessionId);
+    }
+}
@@ -1,105 +1,350 @@
 package com.shrnk.service;
 
 import com.shrnk.model.ProgressEvent;
+import com.shrnk.util.SerialExecutor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
+/**
+ * Server-sent progress events. Workers only record progress in a session's tracker (a few atomic
+ * writes, no allocation, no I/O); a publisher samples the trackers at a fixed rate and sends one
+ * coalesced event per changed session, so a burst of tiny files or a slow client never reaches
+ * the hot path. A session whose previous event is still being written is skipped until it drains.
+ * <p>
+ * Byte counts come from meters wrapped around the streams doing the work (see {@link #meter}),
+ * so a single large entry moves smoothly instead of jumping from 0 to 100%. Each tick also
+ * updates an exponentially weighted throughput per session and per stage (upload, image,
+ * compress, extract); the ETA is derived from the smoothed session rate.
+ */
 @Service
 public class ProgressService {
 
+    private static final Logger log = LoggerFactory.getLogger(ProgressService.class);
+
+    public static final String STAGE_UPLOAD = "upload";
+    public static final String STAGE_IMAGE = "image";
+    public static final String STAGE_COMPRESS = "compress";
+    public static final String STAGE_EXTRACT = "extract";
+
     private final Map<String, SseEmitter> emitters = new ConcurrentHashMap<>();
-    private final Map<String, Long> startTimes = new ConcurrentHashMap<>();
+    private final Map<String, SerialExecutor> senders = new ConcurrentHashMap<>();
+    private final Map<String, Tracker> trackers = new ConcurrentHashMap<>();
+
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Value("${shrnk.progress.interval-ms:100}")
+    private long intervalMs;
+
+    /** Time constant of the throughput average: older samples fade by 1/e per this interval */
+    @Value("${shrnk.progress.rate-smoothing-ms:3000}")
+    private long smoothingMs;
+
+    private ScheduledExecutorService publisher;
+
+    /**
+     * Latest progress of one session. Written by workers, read by the publisher.
+     */
+    private static class Tracker {
+        final AtomicLong bytesProcessed = new AtomicLong();
+        final AtomicLong updates = new AtomicLong();
+        final AtomicBoolean sending = new AtomicBoolean();
+        final Map<String, Rate> stages = new ConcurrentHashMap<>();
+        final Rate overall = new Rate(bytesProcessed);
+        volatile long totalBytes;
+        volatile String status = "";
+        volatile String currentFile = "";
+        long publishedUpdates; // publisher thread only
+    }
+
+    /**
+     * Smoothed throughput of a byte counter, sampled by the publisher
+     */
+    private static class Rate {
+        final AtomicLong bytes;
+        long lastBytes;    // publisher thread only, as are the fields below
+        long lastSampleNanos;
+        double bytesPerSecond;
+        boolean started;
+        boolean seeded;
+
+        Rate(AtomicLong bytes) {
+            this.bytes = bytes;
+        }
+
+        void sample(long now, long smoothingNanos) {
+            long current = bytes.get();
+            if (lastSampleNanos == 0 || current < lastBytes) {
+                // First sample, or the counter was reset for a new phase
+                lastBytes = current;
+                lastSampleNanos = now;
+                bytesPerSecond = 0;
+                started = false;
+                seeded = false;
+                return;
+            }
+            long elapsed = now - lastSampleNanos;
+            if (elapsed <= 0)
+                return;
+            double instant = (current - lastBytes) * 1e9 / elapsed;
+            if (!started) {
+                // The interval with the first bytes is partly idle; seed from the one after it
+                started = current > lastBytes;
+            } else if (!seeded) {
+                bytesPerSecond = instant;
+                seeded = true;
+            } else {
+                double alpha = 1 - Math.exp(-(double) elapsed / smoothingNanos);
+                bytesPerSecond += alpha * (instant - bytesPerSecond);
+            }
+            lastBytes = current;
+            lastSampleNanos = now;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shrnk-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        publisher.scheduleAtFixedRate(this::publish, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        publisher.shutdownNow();
+    }
 
     public SseEmitter createEmitter(String sessionId) {
         SseEmitter emitter = new SseEmitter(600_000L); // 10 min timeout
         emitters.put(sessionId, emitter);
-        startTimes.put(sessionId, System.currentTimeMillis());
 
         emitter.onCompletion(() -> {
             emitters.remove(sessionId);
-            startTimes.remove(sessionId);
+            senders.remove(sessionId);
         });
         emitter.onTimeout(() -> {
             emitters.remove(sessionId);
-            startTimes.remove(sessionId);
+            senders.remove(sessionId);
         });
         emitter.onError(e -> {
             emitters.remove(sessionId);
-            startTimes.remove(sessionId);
+            senders.remove(sessionId);
         });
 
         return emitter;
     }
 
+    /**
+     * Start a phase of work: bytes processed count up from zero towards totalBytes
+     */
+    public void begin(String sessionId, String status, long totalBytes) {
+        Tracker tracker = tracker(sessionId);
+        tracker.bytesProcessed.set(0);
+        tracker.totalBytes = totalBytes;
+        tracker.status = status;
+        tracker.currentFile = "";
+        tracker.updates.incrementAndGet();
+    }
+
+    /**
+     * Name the file the session is working on
+     */
+    public void setCurrentFile(String sessionId, String currentFile) {
+        Tracker tracker = tracker(sessionId);
+        tracker.currentFile = currentFile;
+        tracker.updates.incrementAndGet();
+    }
+
+    /**
+     * A byte counter for a stream callback: counts towards the session's progress and the
+     * stage's throughput. Resolve it once per job; each call is then a few atomic adds.
+     */
+    public LongConsumer meter(String sessionId, String stage) {
+        Tracker tracker = tracker(sessionId);
+        AtomicLong stageBytes = stageBytes(tracker, stage);
+        return bytes -> {
+            stageBytes.addAndGet(bytes);
+            tracker.bytesProcessed.addAndGet(bytes);
+            tracker.updates.incrementAndGet();
+        };
+    }
+
+    /**
+     * A byte counter that only feeds the stage's throughput, for bytes already counted towards
+     * progress by another stage (such as resized images on their way into an archive)
+     */
+    public LongConsumer rateMeter(String sessionId, String stage) {
+        AtomicLong stageBytes = stageBytes(tracker(sessionId), stage);
+        return stageBytes::addAndGet;
+    }
+
+    /**
+     * Record a session's progress as absolute values
+     */
     public void sendProgress(String sessionId, long bytesProcessed, long totalBytes, String status,
             String currentFile) {
-        SseEmitter emitter = emitters.get(sessionId);
-        if (emitter == null)
-            return;
+        Tracker tracker = tracker(sessionId);
+        tracker.bytesProcessed.set(bytesProcessed);
+        tracker.totalBytes = totalBytes;
+        tracker.status = status;
+        tracker.currentFile = currentFile;
+        tracker.updates.incrementAndGet();
+    }
 
-        double percent = totalBytes > 0 ? (double) bytesProcessed / totalBytes * 100 : 0;
-        String eta = calculateEta(sessionId, bytesProcessed, totalBytes);
+    /**
+     * Drop a session's progress state once its session has been cleaned up
+     */
+    public void forget(String sessionId) {
+        trackers.remove(sessionId);
+    }
 
-        ProgressEvent event = new ProgressEvent(sessionId, percent, bytesProcessed, totalBytes, eta, status,
-                currentFile);
+    private Tracker tracker(String sessionId) {
+        return trackers.computeIfAbsent(sessionId, k -> new Tracker());
+    }
 
+    private static AtomicLong stageBytes(Tracker tracker, String stage) {
+        return tracker.stages.computeIfAbsent(stage, k -> new Rate(new AtomicLong())).bytes;
+    }
+
+    /**
+     * One publisher tick: update the rates, then send the latest state of every session that
+     * changed since the last tick
+     */
+    private void publish() {
         try {
-            emitter.send(SseEmitter.event()
-                    .name("progress")
-                    .data(event));
-        } catch (IOException e) {
-            emitters.remove(sessionId);
-            startTimes.remove(sessionId);
+            long now = System.nanoTime();
+            long smoothingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, smoothingMs));
+            for (Map.Entry<String, Tracker> entry : trackers.entrySet()) {
+                String sessionId = entry.getKey();
+                Tracker tracker = entry.getValue();
+                tracker.overall.sample(now, smoothingNanos);
+                for (Rate rate : tracker.stages.values())
+                    rate.sample(now, smoothingNanos);
+
+                SseEmitter emitter = emitters.get(sessionId);
+                long updates = tracker.updates.get();
+                if (emitter == null || updates == tracker.publishedUpdates)
+                    continue;
+                if (!tracker.sending.compareAndSet(false, true))
+                    continue; // previous event still in flight; this state goes out next time
+                tracker.publishedUpdates = updates;
+
+                ProgressEvent event = snapshot(sessionId, tracker);
+                dispatch(sessionId, () -> {
+                    try {
+                        emitter.send(SseEmitter.event()
+                                .name("progress")
+                                .data(event));
+                    } catch (IOException | IllegalStateException e) {
+                        // Client gone, or the emitter completed while this event was in flight
+                        emitters.remove(sessionId);
+                    } finally {
+                        tracker.sending.set(false);
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive
+            log.warn("[Progress] Publish failed", e);
         }
     }
 
+    private ProgressEvent snapshot(String sessionId, Tracker tracker) {
+        long totalBytes = tracker.totalBytes;
+        // Retried writes can count a few bytes twice
+        long bytesProcessed = totalBytes > 0 ? Math.min(tracker.bytesProcessed.get(), totalBytes)
+                : tracker.bytesProcessed.get();
+        double percent = totalBytes > 0 ? (double) bytesProcessed / totalBytes * 100 : 0;
+        double rate = tracker.overall.bytesPerSecond;
+
+        ProgressEvent event = new ProgressEvent(sessionId, percent, bytesProcessed, totalBytes,
+                calculateEta(rate, totalBytes - bytesProcessed), tracker.status, tracker.currentFile);
+        event.setBytesPerSecond(Math.round(rate));
+        Map<String, Long> stageRates = new LinkedHashMap<>();
+        tracker.stages.forEach((stage, r) -> stageRates.put(stage, Math.round(r.bytesPerSecond)));
+        event.setStageRates(stageRates);
+        return event;
+    }
+
     public void sendComplete(String sessionId) {
+        trackers.remove(sessionId);
         SseEmitter emitter = emitters.get(sessionId);
         if (emitter == null)
             return;
 
-        try {
-            ProgressEvent event = new ProgressEvent(sessionId, 100, 0, 0, "0s", "complete", "");
-            emitter.send(SseEmitter.event().name("complete").data(event));
-            emitter.complete();
-        } catch (IOException e) {
-            // Silently ignore
-        } finally {
-            emitters.remove(sessionId);
-            startTimes.remove(sessionId);
-        }
+        emitters.remove(sessionId);
+        dispatch(sessionId, () -> {
+            try {
+                ProgressEvent event = new ProgressEvent(sessionId, 100, 0, 0, "0s", "complete", "");
+                emitter.send(SseEmitter.event().name("complete").data(event));
+                emitter.complete();
+            } catch (IOException e) {
+                // Silently ignore
+            }
+        });
+        senders.remove(sessionId);
     }
 
     public void sendError(String sessionId, String errorMessage) {
+        trackers.remove(sessionId);
         SseEmitter emitter = emitters.get(sessionId);
         if (emitter == null)
             return;
 
-        try {
-            ProgressEvent event = new ProgressEvent(sessionId, 0, 0, 0, "", "error", errorMessage);
-            emitter.send(SseEmitter.event().name("error").data(event));
-            emitter.complete();
-        } catch (IOException e) {
-            // Silently ignore
-        } finally {
-            emitters.remove(sessionId);
-            startTimes.remove(sessionId);
+        emitters.remove(sessionId);
+        dispatch(sessionId, () -> {
+            try {
+                ProgressEvent event = new ProgressEvent(sessionId, 0, 0, 0, "", "error", errorMessage);
+                emitter.send(SseEmitter.event().name("error").data(event));
+                emitter.complete();
+            } catch (IOException e) {
+                // Silently ignore
+            }
+        });
+        senders.remove(sessionId);
+    }
+
+    /**
+     * Send on the caller's thread (the publisher, for progress events), or in virtual-thread mode
+     * hand the send to a virtual thread so one slow client never delays the others; events of one
+     * session stay in order either way
+     */
+    private void dispatch(String sessionId, Runnable send) {
+        if (!jobScheduler.isVirtualThreads()) {
+            send.run();
+            return;
         }
+        senders.computeIfAbsent(sessionId, k -> new SerialExecutor(jobScheduler.blockingExecutor())).execute(send);
     }
 
-    private String calculateEta(String sessionId, long bytesProcessed, long totalBytes) {
-        Long startTime = startTimes.get(sessionId);
-        if (startTime == null || bytesProcessed <= 0)
+    /**
+     * Remaining time at the smoothed rate (bytes per second)
+     */
+    private String calculateEta(double rate, long remaining) {
+        if (rate <= 0)
             return "Calculating...";
 
-        long elapsed = System.currentTimeMillis() - startTime;
-        double rate = (double) bytesProcessed / elapsed; // bytes per ms
-        long remaining = totalBytes - bytesProcessed;
-        long etaMs = (long) (remaining / rate);
+        long etaMs = (long) (remaining / rate * 1000);
 
         if (etaMs < 1000)
             return "< 1s";
@@ -0,0 +1,260 @@
+package com.shrnk.service;
+
+import com.shrnk.util.StreamUtils;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of processed files, kept on local disk.
+ * Keys are a SHA-256 over the input's content hash and the transform parameters, so the same
+ * bytes processed with the same settings are only ever processed once. Results are shared with
+ * session outputs through hard links (copied when the file system can't link), and the least
+ * recently used entries are evicted once the cache grows past its size limit.
+ */
+@Service
+public class ResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+
+    @Value("${shrnk.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${shrnk.cache.dir:${java.io.tmpdir}/shrnk-cache}")
+    private String cacheDir;
+
+    @Value("${shrnk.cache.max-size-mb:1024}")
+    private long maxSizeMb;
+
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Index what a previous run left on disk, oldest first, and drop half-written entries
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled)
+            return;
+        Path dir = Paths.get(cacheDir);
+        try {
+            Files.createDirectories(dir);
+            index(dir);
+        } catch (IOException e) {
+            log.warn("[Cache] Disabled, cache directory {} is unusable: {}", dir, e.getMessage());
+            enabled = false;
+            return;
+        }
+        evictOverflow();
+        log.info("[Cache] {} cached result(s), {} in {}", entries.size(), StreamUtils.formatBytes(totalBytes), dir);
+    }
+
+    private void index(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.filter(Files::isRegularFile).forEach(files::add);
+        }
+        files.sort(Comparator.comparing(ResultCache::lastModified));
+        synchronized (entries) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * A fresh digest for hashing content as it streams past
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * SHA-256 of a file's content, in hex
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            StreamUtils.copy(in, OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Save a stream to a file, replacing it, and return the SHA-256 of the content in hex. The
+     * hash is taken as the bytes pass, so the file is not read back.
+     */
+    public static String saveAndHash(InputStream in, File target) throws IOException {
+        MessageDigest digest = newDigest();
+        StreamUtils.saveToFile(new DigestInputStream(in, digest), target);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Cache key for a transform of the given content; null params are allowed
+     */
+    public static String key(String contentHash, Object... params) {
+        MessageDigest digest = newDigest();
+        digest.update(contentHash.getBytes(StandardCharsets.UTF_8));
+        for (Object param : params) {
+            digest.update((byte) 0);
+            digest.update(String.valueOf(param).getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Place the cached result for key at target. Returns false on a miss.
+     */
+    public boolean fetch(String key, Path target) throws IOException {
+        if (!enabled)
+            return false;
+        synchronized (entries) {
+            if (entries.get(key) == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+        }
+
+        Path cached = Paths.get(cacheDir, key);
+        try {
+            Files.deleteIfExists(target);
+            link(cached, target);
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted between the lookup and the link
+            remove(key);
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Add a finished result under key. The file must not be modified afterwards: it may share
+     * its inode with the cache entry.
+     */
+    public void put(String key, Path result) {
+        if (!enabled)
+            return;
+        synchronized (entries) {
+            if (entries.containsKey(key))
+                return;
+        }
+
+        Path dir = Paths.get(cacheDir);
+        Path tmp = dir.resolve(key + "." + UUID.randomUUID() + ".tmp");
+        try {
+            link(result, tmp);
+            Files.move(tmp, dir.resolve(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            long size = Files.size(dir.resolve(key));
+            synchronized (entries) {
+                Long previous = entries.put(key, size);
+                totalBytes += size - (previous != null ? previous : 0);
+            }
+            evictOverflow();
+        } catch (IOException e) {
+            // The cache is best effort; the job has its result either way
+            log.warn("[Cache] Could not cache {}: {}", result.getFileName(), e.getMessage());
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (entries) {
+            stats.put("enabled", enabled);
+            stats.put("entries", entries.size());
+            stats.put("sizeBytes", totalBytes);
+            stats.put("maxSizeBytes", maxSizeMb << 20);
+        }
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        return stats;
+    }
+
+    private void evictOverflow() {
+        List<String> evicted = new ArrayList<>();
+        synchronized (entries) {
+            var it = entries.entrySet().iterator();
+            while (totalBytes > (maxSizeMb << 20) && it.hasNext()) {
+                var eldest = it.next();
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        // Sessions linked to an evicted entry keep their copy of the inode
+        for (String key : evicted) {
+            try {
+                Files.deleteIfExists(Paths.get(cacheDir, key));
+            } catch (IOException e) {
+                log.warn("[Cache] Could not evict {}: {}", key, e.getMessage());
+            }
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            Long size = entries.remove(key);
+            if (size != null)
+                totalBytes -= size;
+        }
+    }
+
+    private static void link(Path existing, Path link) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (e instanceof NoSuchFileException nsf)
+                throw nsf;
+            // Different file system or no hard link support
+            StreamUtils.copy(existing, link);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.shrnk.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory record of the sessions under the temp directory: when each was last used and how many
+ * bytes it holds. Expiry deadlines sit on a hashed timer wheel, so each janitor tick only looks
+ * at the sessions due in that slot. A touch is a single volatile write; a session touched since
+ * it was scheduled is simply moved to its new slot when its old deadline comes round.
+ */
+@Service
+public class SessionRegistry {
+
+    private static final int WHEEL_SLOTS = 512;
+
+    @Value("${shrnk.janitor.max-age-minutes}")
+    private int maxAgeMinutes;
+
+    @Value("${shrnk.janitor.tick-ms:1000}")
+    private long tickMs;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // Sessions a request is working in right now, with the number of holds on each
+    private final Map<String, Integer> holds = new ConcurrentHashMap<>();
+
+    private final List<List<Session>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private long nextTick; // guarded by wheel
+
+    /**
+     * One session's bookkeeping
+     */
+    public static class Session {
+        private final String sessionId;
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile long lastAccess;
+        private long deadline; // guarded by wheel
+
+        private Session(String sessionId, long lastAccess) {
+            this.sessionId = sessionId;
+            this.lastAccess = lastAccess;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getLastAccess() {
+            return lastAccess;
+        }
+    }
+
+    /**
+     * A request working in a session; closing it releases the session and counts as a use
+     */
+    public class Hold implements AutoCloseable {
+        private final String sessionId;
+        private boolean closed;
+
+        private Hold(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                holds.computeIfPresent(sessionId, (k, n) -> n > 1 ? n - 1 : null);
+                touch(sessionId);
+            }
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        for (int i = 0; i < WHEEL_SLOTS; i++)
+            wheel.add(new ArrayList<>());
+        nextTick = System.currentTimeMillis() / tickMs;
+    }
+
+    /**
+     * Register a session as it starts using disk, or mark an existing one as used now
+     */
+    public Session open(String sessionId) {
+        return open(sessionId, System.currentTimeMillis());
+    }
+
+    /**
+     * Register a session last used at the given time (sessions found on disk at startup)
+     */
+    public Session open(String sessionId, long lastAccess) {
+        Session session = sessions.computeIfAbsent(sessionId, k -> {
+            Session created = new Session(k, lastAccess);
+            schedule(created, lastAccess + maxAgeMillis());
+            return created;
+        });
+        if (lastAccess > session.lastAccess)
+            session.lastAccess = lastAccess;
+        return session;
+    }
+
+    /**
+     * Mark a session as used now, pushing back its expiry; unknown sessions are ignored
+     */
+    public void touch(String sessionId) {
+        Session session = sessions.get(sessionId);
+        if (session != null)
+            session.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Account for bytes a session has written to disk
+     */
+    public void addBytes(String sessionId, long bytes) {
+        Session session = sessions.get(sessionId);
+        if (session != null)
+            session.bytes.addAndGet(bytes);
+    }
+
+    /**
+     * Mark a session busy until the returned hold is closed, however long it goes without a touch.
+     * The session need not be registered yet.
+     */
+    public Hold hold(String sessionId) {
+        holds.merge(sessionId, 1, Integer::sum);
+        return new Hold(sessionId);
+    }
+
+    /**
+     * Whether a request is holding the session
+     */
+    public boolean isHeld(String sessionId) {
+        return holds.containsKey(sessionId);
+    }
+
+    public Session get(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * Advance the wheel to now and return the sessions that have been idle for the maximum age.
+     * They stay registered until {@link #remove}d; one that is kept must be {@link #postpone}d.
+     */
+    public List<Session> expire(long now) {
+        List<Session> expired = new ArrayList<>();
+        List<Session> moved = new ArrayList<>();
+        synchronized (wheel) {
+            long tick = now / tickMs;
+            // After a long pause one pass over every slot is enough
+            long from = Math.max(nextTick, tick - WHEEL_SLOTS + 1);
+            for (long t = from; t <= tick; t++) {
+                List<Session> slot = wheel.get((int) (t % WHEEL_SLOTS));
+                for (Iterator<Session> it = slot.iterator(); it.hasNext();) {
+                    Session session = it.next();
+                    if (sessions.get(session.sessionId) != session) {
+                        it.remove(); // removed since it was scheduled
+                        continue;
+                    }
+                    if (session.deadline > now)
+                        continue; // due in a later round
+                    it.remove();
+                    long deadline = session.lastAccess + maxAgeMillis();
+                    if (deadline > now) {
+                        session.deadline = deadline;
+                        moved.add(session);
+                    } else {
+                        expired.add(session);
+                    }
+                }
+            }
+            nextTick = tick + 1;
+            // Re-slot once the cursor has moved on, so no deadline lands behind it
+            for (Session session : moved)
+                wheel.get(slot(session.deadline)).add(session);
+        }
+        return expired;
+    }
+
+    /**
+     * Check an expired session again later, e.g. because a job is still using it
+     */
+    public void postpone(Session session, long until) {
+        schedule(session, until);
+    }
+
+    /**
+     * Sessions from least to most recently used
+     */
+    public List<Session> leastRecentlyUsed() {
+        List<Session> sorted = new ArrayList<>(sessions.values());
+        sorted.sort(Comparator.comparingLong(Session::getLastAccess));
+        return sorted;
+    }
+
+    public boolean remove(Session session) {
+        return sessions.remove(session.sessionId, session);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (Session session : sessions.values())
+            total += session.bytes.get();
+        return total;
+    }
+
+    private void schedule(Session session, long deadline) {
+        synchronized (wheel) {
+            session.deadline = deadline;
+            wheel.get(slot(deadline)).add(session);
+        }
+    }
+
+    private int slot(long deadline) {
+        // A deadline already passed goes to the next slot to be scanned
+        long tick = Math.max(deadline / tickMs, nextTick);
+        return (int) (tick % WHEEL_SLOTS);
+    }
+
+    private long maxAgeMillis() {
+        return maxAgeMinutes * 60_000L;
+    }
+}
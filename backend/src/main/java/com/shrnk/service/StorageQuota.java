@@ -0,0 +1,295 @@
+package com.shrnk.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk space admission. Every job reserves the bytes it expects to write before it writes any,
+ * and a reservation only counts for what it has not written yet (what it has written already
+ * shows in the file system's free space). A request that doesn't fit waits in line for space,
+ * while the janitor evicts idle sessions to make room, and is rejected if none frees up in time.
+ * <p>
+ * The flow for a request: {@code StorageAdmissionFilter} reserves from Content-Length and binds
+ * the reservation to the request thread; the service that creates the session directory
+ * {@link #attach}es it to the session, whose written bytes come from the {@link SessionRegistry}.
+ * A background job {@link #retain}s it until the job ends.
+ */
+@Service
+public class StorageQuota {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageQuota.class);
+
+    private static final ThreadLocal<Reservation> CURRENT = new ThreadLocal<>();
+
+    @Value("${shrnk.temp-dir}")
+    private String tempDir;
+
+    @Value("${shrnk.janitor.min-free-mb:1024}")
+    private long minFreeMb;
+
+    @Value("${shrnk.storage.max-session-mb:10240}")
+    private long maxSessionMb;
+
+    @Value("${shrnk.storage.max-waiting:16}")
+    private int maxWaiting;
+
+    @Value("${shrnk.storage.wait-seconds:30}")
+    private int waitSeconds;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    private final Set<Reservation> active = ConcurrentHashMap.newKeySet();
+    private final Map<String, Reservation> bySession = new ConcurrentHashMap<>();
+    private final ArrayDeque<Reservation> waiting = new ArrayDeque<>(); // guarded by this
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile FileStore store;
+
+    /**
+     * Space held for one request or job
+     */
+    public class Reservation implements AutoCloseable {
+        private volatile long bytes;
+        private volatile SessionRegistry.Session session;
+        private volatile long baseline;
+        private int holders = 1; // guarded by StorageQuota.this
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Reserved bytes not written yet
+         */
+        long outstanding() {
+            SessionRegistry.Session s = session;
+            long written = s != null ? s.getBytes() - baseline : 0;
+            return Math.max(0, bytes - written);
+        }
+
+        /**
+         * Drop this holder's claim; the space is released once no holder is left
+         */
+        @Override
+        public void close() {
+            synchronized (StorageQuota.this) {
+                if (holders == 0 || --holders > 0)
+                    return;
+                active.remove(this);
+                SessionRegistry.Session s = session;
+                if (s != null)
+                    bySession.remove(s.getSessionId(), this);
+                StorageQuota.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reserve space, waiting in line while the disk is too full. Throws
+     * {@link JobRejectedException} when the line is full or no space frees up in time, and
+     * IllegalArgumentException when the request could never fit.
+     */
+    public Reservation reserve(long bytes) throws IOException {
+        long limit = maxSessionMb << 20;
+        if (bytes > limit)
+            throw new IllegalArgumentException("Job needs an estimated " + formatMb(bytes)
+                    + ", over the per-session limit of " + maxSessionMb + " MB");
+
+        Reservation reservation = new Reservation(bytes);
+        synchronized (this) {
+            if (waiting.isEmpty() && fits(bytes)) {
+                return grant(reservation);
+            }
+            if (waiting.size() >= maxWaiting) {
+                rejected.incrementAndGet();
+                throw new JobRejectedException("Not enough disk space, please retry shortly", waiting.size());
+            }
+
+            queued.incrementAndGet();
+            waiting.addLast(reservation);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+            try {
+                while (waiting.peekFirst() != reservation || !fits(bytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejected.incrementAndGet();
+                        log.warn("[Storage] No space for {} after {}s, rejecting", formatMb(bytes), waitSeconds);
+                        throw new JobRejectedException("Not enough disk space, please retry shortly",
+                                waiting.size() - 1);
+                    }
+                    // Space also comes back from janitor deletes, which don't notify; poll for those
+                    wait(Math.min(250, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+                }
+                return grant(reservation);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for disk space");
+            } finally {
+                waiting.remove(reservation);
+                notifyAll(); // the next in line may fit now
+            }
+        }
+    }
+
+    private Reservation grant(Reservation reservation) {
+        active.add(reservation);
+        granted.incrementAndGet();
+        return reservation;
+    }
+
+    /**
+     * Bind the current request's reservation to this thread, for {@link #attach(String)}
+     */
+    public static void bind(Reservation reservation) {
+        if (reservation != null)
+            CURRENT.set(reservation);
+        else
+            CURRENT.remove();
+    }
+
+    /**
+     * Move the reservation bound to this thread (if any) to a newly registered session
+     */
+    public void attach(String sessionId) {
+        Reservation reservation = CURRENT.get();
+        if (reservation != null)
+            attach(sessionId, reservation);
+    }
+
+    /**
+     * Count a session's writes against a reservation from now on
+     */
+    public void attach(String sessionId, Reservation reservation) {
+        SessionRegistry.Session session = sessionRegistry.get(sessionId);
+        if (session == null || reservation.session != null)
+            return;
+        reservation.baseline = session.getBytes();
+        reservation.session = session;
+        bySession.put(sessionId, reservation);
+    }
+
+    /**
+     * Keep a session's reservation after its request ends, for a background job
+     */
+    public void retain(String sessionId) {
+        synchronized (this) {
+            Reservation reservation = bySession.get(sessionId);
+            if (reservation != null)
+                reservation.holders++;
+        }
+    }
+
+    /**
+     * Drop a claim taken with {@link #retain}, or the session's own reservation
+     */
+    public void release(String sessionId) {
+        Reservation reservation = bySession.get(sessionId);
+        if (reservation != null)
+            reservation.close();
+    }
+
+    /**
+     * Replace a session's estimate once the real size is known: it expects moreBytes beyond what it
+     * has written so far. Growing waits for space like {@link #reserve}; a session without a
+     * reservation is not limited.
+     */
+    public void expect(String sessionId, long moreBytes) throws IOException {
+        Reservation reservation = bySession.get(sessionId);
+        if (reservation == null)
+            return;
+        SessionRegistry.Session session = reservation.session;
+        long written = session.getBytes() - reservation.baseline;
+        long needed = written + moreBytes;
+        if (needed > maxSessionMb << 20)
+            throw new IllegalArgumentException("Job needs " + formatMb(needed)
+                    + ", over the per-session limit of " + maxSessionMb + " MB");
+        if (needed <= reservation.bytes) {
+            synchronized (this) {
+                reservation.bytes = needed;
+                notifyAll();
+            }
+            return;
+        }
+
+        // Wait in line for the difference, then fold it in; the extra claim ends once the job's covers it
+        Reservation extra = reserve(needed - reservation.bytes);
+        reservation.bytes = needed;
+        extra.close();
+    }
+
+    /**
+     * Bytes promised to jobs but not written yet, plus what waiting requests ask for; the janitor
+     * evicts idle sessions to keep this much above its free-space watermark
+     */
+    public long getDemand() {
+        long demand = outstanding();
+        synchronized (this) {
+            for (Reservation reservation : waiting)
+                demand += reservation.bytes;
+        }
+        return demand;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("activeReservations", active.size());
+        stats.put("outstandingBytes", outstanding());
+        synchronized (this) {
+            stats.put("waiting", waiting.size());
+        }
+        stats.put("granted", granted.get());
+        stats.put("queued", queued.get());
+        stats.put("rejected", rejected.get());
+        stats.put("maxSessionBytes", maxSessionMb << 20);
+        return stats;
+    }
+
+    private boolean fits(long bytes) {
+        long usable;
+        try {
+            usable = fileStore().getUsableSpace();
+        } catch (IOException e) {
+            return true; // temp dir not created yet, nothing written there either
+        }
+        return usable - (minFreeMb << 20) - outstanding() >= bytes;
+    }
+
+    private long outstanding() {
+        long total = 0;
+        for (Reservation reservation : active)
+            total += reservation.outstanding();
+        return total;
+    }
+
+    private FileStore fileStore() throws IOException {
+        FileStore fs = store;
+        if (fs == null)
+            store = fs = Files.getFileStore(Paths.get(tempDir));
+        return fs;
+    }
+
+    private static String formatMb(long bytes) {
+        return (bytes >> 20) + " MB";
+    }
+}
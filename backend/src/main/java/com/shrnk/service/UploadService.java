@@ -0,0 +1,211 @@
+package com.shrnk.service;
+
+import com.shrnk.model.Upload;
+import com.shrnk.util.SavedUpload;
+import com.shrnk.util.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chunked, resumable uploads. A client begins an upload with the file's size, PUTs fixed-size
+ * chunks in any order (each written at its offset into a preallocated file, straight from the
+ * request body), and commits once every chunk is in. Resuming after a dropped connection means
+ * asking which chunks are present and sending only the rest; a chunk re-sent with the checksum
+ * it was stored under is acknowledged without reading its body.
+ * The upload ID doubles as a session ID, so the janitor cleans up abandoned uploads and clients
+ * can follow the ingest on the session's progress stream.
+ */
+@Service
+public class UploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadService.class);
+
+    /** Smallest accepted chunk size, so an upload cannot be split into millions of tiny writes */
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    @Value("${shrnk.temp-dir}")
+    private String tempDir;
+
+    @Value("${shrnk.upload.chunk-size-mb:8}")
+    private int defaultChunkSizeMb;
+
+    @Value("${shrnk.upload.max-size-mb:20480}")
+    private long maxSizeMb;
+
+    @Value("${shrnk.upload.max-chunks:65536}")
+    private int maxChunks;
+
+    @Autowired
+    private ProgressService progressService;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private StorageQuota storageQuota;
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Start an upload and preallocate its file. chunkSize 0 uses the configured default.
+     */
+    public Upload begin(String fileName, long size, int chunkSize, String sha256) throws IOException {
+        if (size < 0 || size > maxSizeMb << 20)
+            throw new IllegalArgumentException("Upload size must be between 0 and " + maxSizeMb + " MB");
+        if (chunkSize == 0)
+            chunkSize = defaultChunkSizeMb << 20;
+        if (chunkSize < MIN_CHUNK_SIZE)
+            throw new IllegalArgumentException("Chunk size must be at least " + MIN_CHUNK_SIZE + " bytes");
+        // Chunk state (a bit and a hash per chunk) is held in memory for the life of the upload
+        if ((size + chunkSize - 1) / chunkSize > maxChunks)
+            throw new IllegalArgumentException("Upload would need more than " + maxChunks
+                    + " chunks; use chunks of at least " + ((size + maxChunks - 1) / maxChunks) + " bytes");
+
+        // Hold disk space for the whole file until the last chunk is in: the preallocated file
+        // is sparse, so the file system only sees chunks as they land
+        StorageQuota.Reservation reservation = storageQuota.reserve(size);
+        String uploadId = UUID.randomUUID().toString();
+        String name = Paths.get(Objects.requireNonNullElse(fileName, "upload")).getFileName().toString();
+        Path dir = Paths.get(tempDir, uploadId, "upload");
+        Path path = dir.resolve(name);
+        try {
+            Files.createDirectories(dir);
+            sessionRegistry.open(uploadId);
+            storageQuota.attach(uploadId, reservation);
+
+            // Set the full length up front; chunks then land at their offsets in any order
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+                raf.setLength(size);
+            }
+        } catch (IOException | RuntimeException e) {
+            reservation.close();
+            throw e;
+        }
+
+        Upload upload = new Upload(uploadId, name, size, chunkSize,
+                sha256 != null && !sha256.isEmpty() ? sha256.toLowerCase() : null, path);
+        uploads.put(uploadId, upload);
+        progressService.begin(uploadId, "Uploading", size);
+        progressService.setCurrentFile(uploadId, name);
+        log.info("[Upload] Started {} ({} bytes, {} chunk(s))", uploadId, size, upload.getChunkCount());
+        return upload;
+    }
+
+    public Upload get(String uploadId) {
+        return uploads.get(uploadId);
+    }
+
+    /**
+     * Write one chunk from body at its offset. When the chunk is already stored under the given
+     * checksum, the body is not read at all. Returns true if the chunk was written, false if skipped.
+     */
+    public boolean writeChunk(Upload upload, int index, String checksum, InputStream body) throws IOException {
+        if (upload.isCommitted())
+            throw new IllegalStateException("Upload already committed");
+        if (index < 0 || index >= upload.getChunkCount())
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        sessionRegistry.touch(upload.getUploadId());
+
+        String expected = checksum != null && !checksum.isEmpty() ? checksum.toLowerCase() : null;
+        if (upload.hasChunk(index) && (expected == null || expected.equals(upload.getChunkHash(index))))
+            return false;
+        // The old bytes are gone as soon as the rewrite starts, whether or not it completes
+        upload.clearReceived(index);
+
+        // Held for the write, so a slow chunk is not mistaken for an abandoned upload
+        SessionRegistry.Hold hold = sessionRegistry.hold(upload.getUploadId());
+        try (hold) {
+            MessageDigest digest = ResultCache.newDigest();
+            int length = upload.chunkLength(index);
+            long written;
+            try (FileChannel channel = FileChannel.open(upload.getPath(), StandardOpenOption.WRITE)) {
+                written = StreamUtils.copy(new DigestInputStream(body, digest), channel, upload.chunkOffset(index),
+                        length, progressService.meter(upload.getUploadId(), ProgressService.STAGE_UPLOAD)
+                                .andThen(bytes -> sessionRegistry.addBytes(upload.getUploadId(), bytes)));
+            }
+            if (written < length)
+                throw new EOFException("Chunk " + index + " is short by " + (length - written) + " bytes");
+            if (body.read() != -1)
+                throw new IllegalArgumentException("Chunk " + index + " is longer than " + upload.chunkLength(index)
+                        + " bytes");
+
+            String actual = HexFormat.of().formatHex(digest.digest());
+            if (expected != null && !expected.equals(actual))
+                throw new IllegalArgumentException("Checksum mismatch for chunk " + index);
+            upload.markReceived(index, actual);
+            return true;
+        }
+    }
+
+    /**
+     * Finish an upload once all chunks are present, verifying the whole-file checksum if one was given
+     */
+    public void commit(Upload upload) throws IOException {
+        if (upload.isCommitted())
+            return;
+        if (!upload.isComplete())
+            throw new IllegalStateException("Missing chunks: " + (upload.getChunkCount()
+                    - upload.getReceivedChunks().size()) + " of " + upload.getChunkCount());
+
+        if (upload.getSha256() != null) {
+            if (!upload.getSha256().equals(ResultCache.hash(upload.getPath())))
+                throw new IllegalArgumentException("Checksum mismatch for " + upload.getFileName());
+        }
+        upload.setCommitted(true);
+        sessionRegistry.touch(upload.getUploadId());
+        storageQuota.release(upload.getUploadId());
+        progressService.sendComplete(upload.getUploadId());
+        log.info("[Upload] Committed {} ({})", upload.getUploadId(), upload.getFileName());
+    }
+
+    /**
+     * The committed uploads with the given IDs, in order, as files a job can read.
+     * Uploads stay available for further jobs until their session expires.
+     */
+    public MultipartFile[] resolve(List<String> uploadIds) {
+        List<MultipartFile> files = new ArrayList<>();
+        for (String uploadId : uploadIds) {
+            Upload upload = uploads.get(uploadId);
+            if (upload == null || !upload.isCommitted())
+                throw new IllegalArgumentException("No committed upload " + uploadId);
+            sessionRegistry.touch(upload.getUploadId());
+            // A checksum given at begin was verified on commit, so it is the content hash
+            files.add(SavedUpload.of(upload.getPath(), upload.getFileName(), upload.getSha256()));
+        }
+        return files.toArray(new MultipartFile[0]);
+    }
+
+    /**
+     * Abandon an upload and delete what was received
+     */
+    public void abort(Upload upload) throws IOException {
+        uploads.remove(upload.getUploadId());
+        storageQuota.release(upload.getUploadId());
+        Files.deleteIfExists(upload.getPath());
+        progressService.sendError(upload.getUploadId(), "Upload aborted");
+    }
+
+    /**
+     * Drop an upload record once its session has been cleaned up
+     */
+    public void forget(String uploadId) {
+        Upload upload = uploads.remove(uploadId);
+        if (upload != null && !upload.isCommitted())
+            storageQuota.release(uploadId);
+    }
+}
@@ -0,0 +1,252 @@
+package com.shrnk.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of direct ByteBuffers in power-of-two size classes (4 KB to 4 MB), for payloads that
+ * would otherwise be allocated per block or per image and that native code reads in place (deflate
+ * blocks, file reads, in-memory images). Stream copies, upload ingest included, deliberately use
+ * the byte arrays pooled by {@link StreamUtils} instead: InputStream.read only fills an array, so
+ * staging through a direct buffer would add a copy rather than save one. A buffer is
+ * {@link #lease}d and must be
+ * returned with {@link Lease#close}; idle buffers are kept up to a total byte cap (see
+ * {@link #configure}), beyond which returned buffers are left to the garbage collector.
+ * <p>
+ * A lease that becomes unreachable without being closed is reported as a leak when it is
+ * collected; with stack tracking on, the report names where it was leased. The buffer of a leaked
+ * lease is not reclaimed, since whoever leaked it may still hold the buffer itself.
+ */
+public class BufferPool {
+
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    private static final int MIN_CLASS_SHIFT = 12; // 4 KB
+    private static final int MAX_CLASS_SHIFT = 22; // 4 MB
+    private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    private static final Cleaner CLEANER = Cleaner.create(r -> {
+        Thread t = new Thread(r, "shrnk-buffer-leaks");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final List<ConcurrentLinkedDeque<ByteBuffer>> IDLE = new ArrayList<>(CLASSES);
+    private static final AtomicInteger[] LEASED = new AtomicInteger[CLASSES];
+
+    private static final AtomicLong idleBytes = new AtomicLong();
+    private static final AtomicLong leasedBytes = new AtomicLong();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong leases = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong oversized = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong leaks = new AtomicLong();
+
+    private static volatile long maxIdleBytes = 64L << 20;
+    private static volatile boolean trackStacks;
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            IDLE.add(new ConcurrentLinkedDeque<>());
+            LEASED[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Set how many bytes of idle buffers are kept, and whether leases record their stack trace
+     * for leak reports (costly; for debugging)
+     */
+    public static void configure(long maxIdle, boolean stacks) {
+        maxIdleBytes = maxIdle;
+        trackStacks = stacks;
+        trim();
+    }
+
+    /**
+     * A buffer held by one user. Closing it returns the buffer to the pool; {@link #discard}
+     * gives it up without reuse, for a buffer another thread may still be touching.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final ByteBuffer buffer;
+        private final int sizeClass; // -1 when too large to pool
+        private final State state;
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            this.state = new State(buffer.capacity(), sizeClass, trackStacks ? new Throwable("Leased here") : null);
+            this.cleanable = CLEANER.register(this, state);
+        }
+
+        /**
+         * The buffer, cleared, with its limit at the requested size
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            if (finish())
+                recycle(buffer, sizeClass);
+        }
+
+        public void discard() {
+            if (finish())
+                dropped.incrementAndGet();
+        }
+
+        private boolean finish() {
+            if (!state.released.compareAndSet(false, true))
+                return false;
+            cleanable.clean(); // deregister; the action sees the lease released
+            leasedBytes.addAndGet(-buffer.capacity());
+            if (sizeClass >= 0)
+                LEASED[sizeClass].decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Leak check run when a lease is collected (or closed). Must not reference the lease.
+     */
+    private static final class State implements Runnable {
+        final AtomicBoolean released = new AtomicBoolean();
+        final int capacity;
+        final int sizeClass;
+        final Throwable site;
+
+        State(int capacity, int sizeClass, Throwable site) {
+            this.capacity = capacity;
+            this.sizeClass = sizeClass;
+            this.site = site;
+        }
+
+        @Override
+        public void run() {
+            if (released.get())
+                return;
+            leaks.incrementAndGet();
+            leasedBytes.addAndGet(-capacity);
+            if (sizeClass >= 0)
+                LEASED[sizeClass].decrementAndGet();
+            if (site != null)
+                log.warn("[Buffers] Leaked a {} buffer", StreamUtils.formatBytes(capacity), site);
+            else
+                log.warn("[Buffers] Leaked a {} buffer (enable shrnk.io.leak-stack-traces to see where)",
+                        StreamUtils.formatBytes(capacity));
+        }
+    }
+
+    /**
+     * Lease a direct buffer of at least the given size, cleared with its limit at size
+     */
+    public static Lease lease(int size) {
+        leases.incrementAndGet();
+        int sizeClass = classOf(size);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            oversized.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            buffer = IDLE.get(sizeClass).pollFirst();
+            if (buffer != null) {
+                hits.incrementAndGet();
+                idleBytes.addAndGet(-buffer.capacity());
+                buffer.clear();
+            } else {
+                int capacity = 1 << (sizeClass + MIN_CLASS_SHIFT);
+                buffer = ByteBuffer.allocateDirect(capacity);
+                allocatedBytes.addAndGet(capacity);
+            }
+            LEASED[sizeClass].incrementAndGet();
+        }
+        buffer.limit(size);
+        leasedBytes.addAndGet(buffer.capacity());
+        return new Lease(buffer, sizeClass);
+    }
+
+    public static Map<String, Object> stats() {
+        long total = leases.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("leases", total);
+        stats.put("hits", hits.get());
+        stats.put("hitRate", total > 0 ? (double) hits.get() / total : 0);
+        stats.put("leasedBytes", leasedBytes.get());
+        stats.put("idleBytes", idleBytes.get());
+        stats.put("maxIdleBytes", maxIdleBytes);
+        stats.put("allocatedBytes", allocatedBytes.get());
+        stats.put("oversized", oversized.get());
+        stats.put("dropped", dropped.get());
+        stats.put("leaks", leaks.get());
+
+        List<Map<String, Object>> classes = new ArrayList<>();
+        for (int i = 0; i < CLASSES; i++) {
+            int leased = LEASED[i].get();
+            int idle = IDLE.get(i).size();
+            if (leased == 0 && idle == 0)
+                continue;
+            Map<String, Object> sizeClass = new LinkedHashMap<>();
+            sizeClass.put("size", 1 << (i + MIN_CLASS_SHIFT));
+            sizeClass.put("leased", leased);
+            sizeClass.put("idle", idle);
+            classes.add(sizeClass);
+        }
+        stats.put("classes", classes);
+
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName()))
+                stats.put("jvmDirectBytes", pool.getMemoryUsed());
+        }
+        return stats;
+    }
+
+    private static void recycle(ByteBuffer buffer, int sizeClass) {
+        if (sizeClass < 0 || idleBytes.addAndGet(buffer.capacity()) > maxIdleBytes) {
+            if (sizeClass >= 0)
+                idleBytes.addAndGet(-buffer.capacity());
+            dropped.incrementAndGet();
+            return;
+        }
+        IDLE.get(sizeClass).offerFirst(buffer); // most recently used first, while it is still warm
+    }
+
+    /**
+     * Drop idle buffers beyond the cap, largest classes first
+     */
+    private static void trim() {
+        for (int i = CLASSES - 1; i >= 0 && idleBytes.get() > maxIdleBytes; i--) {
+            ByteBuffer buffer;
+            while (idleBytes.get() > maxIdleBytes && (buffer = IDLE.get(i).pollLast()) != null)
+                idleBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Smallest class holding size bytes, or -1 if it is larger than the largest class
+     */
+    private static int classOf(int size) {
+        if (size > 1 << MAX_CLASS_SHIFT)
+            return -1;
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+}
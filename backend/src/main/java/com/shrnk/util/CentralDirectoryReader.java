@@ -0,0 +1,239 @@
+package com.shrnk.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a ZIP's entry list straight from its central directory.
+ * Only the end-of-central-directory block and the central directory itself are touched, through
+ * memory-mapped buffers, so listing cost depends on the entry count and not on the archive size.
+ * Handles ZIP64 archives and data prepended to the archive (e.g. self-extractors).
+ */
+public class CentralDirectoryReader {
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int CDH_SIG = 0x02014b50;
+
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_MIN_SIZE = 56;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    // Names without the UTF-8 flag are in the original IBM PC code page, as older Windows tools write them
+    private static final Charset LEGACY_CHARSET = Charset.forName("IBM437");
+
+    private CentralDirectoryReader() {
+    }
+
+    /**
+     * A central directory record
+     */
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final int flags;
+        private final long crc;
+        private final long compressedSize;
+        private final long uncompressedSize;
+        private final long localHeaderOffset;
+
+        Entry(String name, int method, int flags, long crc, long compressedSize, long uncompressedSize,
+                long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getUncompressedSize() {
+            return uncompressedSize;
+        }
+
+        /**
+         * Offset of the local file header, already adjusted for any prepended data
+         */
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        public boolean isEncrypted() {
+            return (flags & 1) != 0;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/") || name.endsWith("\\");
+        }
+    }
+
+    /**
+     * Read all central directory entries of the ZIP file at the given path
+     */
+    public static List<Entry> read(Path zipPath) throws IOException {
+        try (FileChannel ch = FileChannel.open(zipPath, StandardOpenOption.READ)) {
+            return read(ch);
+        }
+    }
+
+    public static List<Entry> read(FileChannel ch) throws IOException {
+        long fileSize = ch.size();
+        if (fileSize < EOCD_MIN_SIZE)
+            throw new ZipException("Not a ZIP archive (too small)");
+
+        // The EOCD sits within the last 22 bytes + max comment; include room for the ZIP64 locator
+        long tailStart = Math.max(0, fileSize - EOCD_MIN_SIZE - MAX_COMMENT - ZIP64_LOCATOR_SIZE);
+        ByteBuffer tail = map(ch, tailStart, fileSize - tailStart);
+        int eocd = findEocd(tail);
+        if (eocd < 0)
+            throw new ZipException("Not a ZIP archive (no end of central directory record)");
+
+        long eocdPos = tailStart + eocd;
+        long entryCount = u16(tail, eocd + 10);
+        long cdSize = u32(tail, eocd + 12);
+        long cdOffset = u32(tail, eocd + 16);
+        long cdEnd = eocdPos;
+
+        int locator = eocd - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIG) {
+            long zip64EocdPos = tail.getLong(locator + 8);
+            long actualPos = tailStart + locator - ZIP64_EOCD_MIN_SIZE;
+            // Trust the record that sits right before the locator if the stored offset is shifted
+            if (zip64EocdPos < 0 || zip64EocdPos >= fileSize || !isZip64Eocd(ch, zip64EocdPos))
+                zip64EocdPos = actualPos;
+            ByteBuffer z = map(ch, zip64EocdPos, ZIP64_EOCD_MIN_SIZE);
+            if (z.getInt(0) != ZIP64_EOCD_SIG)
+                throw new ZipException("Corrupt ZIP64 end of central directory record");
+            entryCount = z.getLong(32);
+            cdSize = z.getLong(40);
+            cdOffset = z.getLong(48);
+            cdEnd = zip64EocdPos;
+        }
+
+        // Any bytes prepended to the archive shift every stored offset by the same amount
+        long cdStart = cdEnd - cdSize;
+        if (cdStart < 0)
+            throw new ZipException("Corrupt central directory size");
+        long shift = cdStart - cdOffset;
+        if (cdSize > Integer.MAX_VALUE)
+            throw new ZipException("Central directory too large");
+
+        ByteBuffer cd = map(ch, cdStart, cdSize);
+        return parse(cd, entryCount, shift);
+    }
+
+    private static List<Entry> parse(ByteBuffer cd, long entryCount, long shift) throws ZipException {
+        List<Entry> entries = new ArrayList<>((int) Math.min(entryCount, 1 << 20));
+        int pos = 0;
+        int limit = cd.limit();
+        while (pos + 46 <= limit && cd.getInt(pos) == CDH_SIG) {
+            int flags = u16(cd, pos + 8);
+            int method = u16(cd, pos + 10);
+            long crc = u32(cd, pos + 16);
+            long compressed = u32(cd, pos + 20);
+            long uncompressed = u32(cd, pos + 24);
+            int nameLen = u16(cd, pos + 28);
+            int extraLen = u16(cd, pos + 30);
+            int commentLen = u16(cd, pos + 32);
+            long offset = u32(cd, pos + 42);
+
+            int nameStart = pos + 46;
+            int extraStart = nameStart + nameLen;
+            int next = extraStart + extraLen + commentLen;
+            if (next > limit)
+                throw new ZipException("Truncated central directory entry");
+
+            byte[] nameBytes = new byte[nameLen];
+            cd.get(nameStart, nameBytes);
+
+            // ZIP64 extended information: only the fields saturated in the header are present, in order
+            int extraPos = extraStart;
+            int extraEnd = extraStart + extraLen;
+            while (extraPos + 4 <= extraEnd) {
+                int id = u16(cd, extraPos);
+                int size = u16(cd, extraPos + 2);
+                int field = extraPos + 4;
+                if (id == 0x0001) {
+                    if (uncompressed == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                        uncompressed = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressed == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                        compressed = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                        offset = cd.getLong(field);
+                    }
+                    break;
+                }
+                extraPos = field + size;
+            }
+
+            Charset charset = (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : LEGACY_CHARSET;
+            entries.add(new Entry(new String(nameBytes, charset), method, flags, crc,
+                    compressed, uncompressed, offset + shift));
+            pos = next;
+        }
+        return entries;
+    }
+
+    private static int findEocd(ByteBuffer tail) {
+        for (int i = tail.limit() - EOCD_MIN_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG && i + EOCD_MIN_SIZE + u16(tail, i + 20) <= tail.limit())
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean isZip64Eocd(FileChannel ch, long pos) throws IOException {
+        if (pos + ZIP64_EOCD_MIN_SIZE > ch.size())
+            return false;
+        return map(ch, pos, 4).getInt(0) == ZIP64_EOCD_SIG;
+    }
+
+    private static MappedByteBuffer map(FileChannel ch, long pos, long size) throws IOException {
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static int u16(ByteBuffer b, int pos) {
+        return b.getShort(pos) & 0xFFFF;
+    }
+
+    private static long u32(ByteBuffer b, int pos) {
+        return b.getInt(pos) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,143 @@
+package com.shrnk.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size worker pool that is fair across keys (sessions).
+ * Each key gets its own FIFO queue and workers take from the keys round-robin, so one session
+ * with thousands of queued tasks can't starve a session that submits a single task.
+ */
+public class FairExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(FairExecutor.class);
+
+    private final String name;
+    private final Map<String, ArrayDeque<Queued>> queues = new HashMap<>();
+    private final ArrayDeque<String> ring = new ArrayDeque<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private int queued;
+    private long completed;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private boolean shutdown;
+
+    private record Queued(Runnable task, long enqueuedAt) {
+    }
+
+    public FairExecutor(String name, int threads, ThreadFactory threadFactory) {
+        this.name = name;
+        for (int i = 0; i < threads; i++) {
+            Thread t = threadFactory.newThread(this::workLoop);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * An executor view that queues everything under the given key
+     */
+    public Executor forKey(String key) {
+        return task -> execute(key, task);
+    }
+
+    public void execute(String key, Runnable task) {
+        synchronized (this) {
+            if (shutdown)
+                throw new RejectedExecutionException(name + " is shut down");
+            ArrayDeque<Queued> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+                ring.addLast(key);
+            }
+            queue.addLast(new Queued(task, System.nanoTime()));
+            queued++;
+            notify();
+        }
+    }
+
+    private void workLoop() {
+        while (true) {
+            Queued next;
+            synchronized (this) {
+                while (queued == 0 && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown)
+                    return;
+                next = takeNext();
+            }
+
+            active.incrementAndGet();
+            try {
+                next.task().run();
+            } catch (Throwable t) {
+                log.error("[{}] Task failed", name, t);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Pop the head task of the next key in round-robin order; caller holds the lock
+     */
+    private Queued takeNext() {
+        String key = ring.pollFirst();
+        ArrayDeque<Queued> queue = queues.get(key);
+        Queued next = queue.pollFirst();
+        if (queue.isEmpty())
+            queues.remove(key);
+        else
+            ring.addLast(key);
+        queued--;
+
+        long wait = System.nanoTime() - next.enqueuedAt();
+        completed++;
+        totalWaitNanos += wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+        return next;
+    }
+
+    public int getThreads() {
+        return workers.size();
+    }
+
+    /**
+     * Snapshot of queue depth, activity and task wait times
+     */
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threads", workers.size());
+        stats.put("active", active.get());
+        stats.put("queueDepth", queued);
+        stats.put("queuedKeys", queues.size());
+        stats.put("started", completed);
+        stats.put("avgWaitMs", completed > 0 ? totalWaitNanos / completed / 1_000_000.0 : 0.0);
+        stats.put("maxWaitMs", maxWaitNanos / 1_000_000.0);
+        return stats;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.shrnk.util;
+
+import net.lingala.zip4j.headers.HeaderReader;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.Zip4jConfig;
+import net.lingala.zip4j.model.ZipModel;
+import net.lingala.zip4j.util.InternalZipConstants;
+import net.lingala.zip4j.util.UnzipUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * An open ZIP archive with a name-to-entry index built once from its central directory.
+ * Entries are served as streams over positional reads of a shared channel, so concurrent readers
+ * never disturb each other. The handle is reference counted: it closes once it has been released
+ * by its owner and every stream opened from it is closed. Encrypted entries go through zip4j, whose
+ * own view of the central directory is read once, on the first encrypted read, and kept with the index.
+ */
+public class IndexedZipFile {
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Map<String, CentralDirectoryReader.Entry> index;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private volatile Zip4jIndex zip4j; // guarded by this when set
+
+    /**
+     * zip4j's parsed headers and a name lookup over them
+     */
+    private record Zip4jIndex(ZipModel model, Map<String, FileHeader> headers) {
+    }
+
+    private IndexedZipFile(Path path, FileChannel channel, Map<String, CentralDirectoryReader.Entry> index) {
+        this.path = path;
+        this.channel = channel;
+        this.index = index;
+    }
+
+    /**
+     * Open the archive and index its entries; the caller owns the initial reference
+     */
+    public static IndexedZipFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            List<CentralDirectoryReader.Entry> entries = CentralDirectoryReader.read(channel);
+            Map<String, CentralDirectoryReader.Entry> index = new HashMap<>(entries.size() * 2);
+            for (CentralDirectoryReader.Entry entry : entries) {
+                index.put(entry.getName(), entry);
+            }
+            return new IndexedZipFile(path, channel, index);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public CentralDirectoryReader.Entry getEntry(String name) {
+        return index.get(name);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Take an extra reference; returns false if the handle is already closed
+     */
+    public boolean retain() {
+        int n;
+        do {
+            n = refs.get();
+            if (n <= 0)
+                return false;
+        } while (!refs.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Drop a reference, closing the underlying channel when none remain
+     */
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Open the inflated contents of an entry. Encrypted entries are decrypted through zip4j.
+     */
+    public InputStream openEntry(CentralDirectoryReader.Entry entry, char[] password) throws IOException {
+        if (!retain())
+            throw new IOException("Archive handle is closed");
+        try {
+            InputStream in = entry.isEncrypted() ? openEncrypted(entry, password) : openPlain(entry);
+            return new FilterInputStream(in) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed)
+                        return;
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private InputStream openPlain(CentralDirectoryReader.Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, entry.getLocalHeaderOffset());
+        if (header.getInt(0) != LOCAL_HEADER_SIG)
+            throw new ZipException("Invalid local file header for " + entry.getName());
+        int nameLen = header.getShort(26) & 0xFFFF;
+        int extraLen = header.getShort(28) & 0xFFFF;
+        long dataStart = entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + nameLen + extraLen;
+
+        InputStream raw = new BufferedInputStream(
+                new ChannelRangeInputStream(channel, dataStart, entry.getCompressedSize()), 64 * 1024);
+        switch (entry.getMethod()) {
+            case ZipStreamWriter.METHOD_STORE:
+                return raw;
+            case ZipStreamWriter.METHOD_DEFLATE:
+                Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(raw, inflater, 64 * 1024) {
+                    private boolean eof;
+
+                    // Like java.util.zip.ZipFile, feed one dummy byte at the end for raw inflate
+                    @Override
+                    protected void fill() throws IOException {
+                        if (eof)
+                            throw new EOFException("Unexpected end of entry data");
+                        len = in.read(buf, 0, buf.length);
+                        if (len == -1) {
+                            buf[0] = 0;
+                            len = 1;
+                            eof = true;
+                        }
+                        inf.setInput(buf, 0, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            default:
+                throw new ZipException("Unsupported compression method " + entry.getMethod());
+        }
+    }
+
+    private InputStream openEncrypted(CentralDirectoryReader.Entry entry, char[] password) throws IOException {
+        if (password == null)
+            throw new ZipException("Password required for encrypted entry " + entry.getName());
+        Zip4jIndex index = zip4jIndex();
+        FileHeader header = index.headers().get(entry.getName());
+        if (header == null)
+            throw new ZipException("No file found with name " + entry.getName() + " in zip file");
+        // Opens its own file handle at the entry's local header; closing the stream closes it
+        return UnzipUtil.createZipInputStream(index.model(), header, password);
+    }
+
+    private Zip4jIndex zip4jIndex() throws IOException {
+        Zip4jIndex index = zip4j;
+        if (index != null)
+            return index;
+        synchronized (this) {
+            if (zip4j == null) {
+                ZipModel model;
+                try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+                    model = new HeaderReader().readAllHeaders(raf,
+                            new Zip4jConfig(null, InternalZipConstants.BUFF_SIZE, true));
+                }
+                model.setZipFile(path.toFile());
+                Map<String, FileHeader> headers = new HashMap<>();
+                for (FileHeader header : model.getCentralDirectory().getFileHeaders()) {
+                    headers.put(header.getFileName(), header);
+                }
+                zip4j = new Zip4jIndex(model, headers);
+            }
+            return zip4j;
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0)
+                throw new EOFException("Unexpected end of archive");
+        }
+    }
+
+    /**
+     * Bounded stream over a region of a file channel using positional reads
+     */
+    private static class ChannelRangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        ChannelRangeInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0)
+                return -1;
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
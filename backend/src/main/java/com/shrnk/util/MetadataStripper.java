@@ -0,0 +1,225 @@
+package com.shrnk.util;
+
+import com.drew.lang.ByteArrayReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Lossless metadata removal that works on the container structure, without decoding pixels.
+ * JPEG: drops APP1 (EXIF, XMP), APP13 (Photoshop/IPTC) and COM segments and copies everything
+ * from the first scan onwards untouched. PNG: drops tEXt, zTXt, iTXt and eXIf chunks.
+ * Streams with memory bounded by the largest marker segment (64 KB).
+ */
+public class MetadataStripper {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+    private static final int APP13 = 0xED;
+    private static final int COM = 0xFE;
+
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] XMP_HEADER = "http://ns.adobe.com/".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final Set<String> PNG_METADATA_CHUNKS = Set.of("tEXt", "zTXt", "iTXt", "eXIf");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MetadataStripper() {
+    }
+
+    /**
+     * Whether the stripper handles this file type (by extension)
+     */
+    public static boolean supports(String fileName) {
+        String lower = fileName.toLowerCase();
+        return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png");
+    }
+
+    /**
+     * Copy an image from in to out without its metadata. Returns the kinds of metadata removed,
+     * or null (with nothing written) if the data is neither a JPEG nor a PNG.
+     */
+    public static Set<String> strip(InputStream in, OutputStream out) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in, BUFFER_SIZE);
+        bin.mark(PNG_SIGNATURE.length);
+        byte[] magic = bin.readNBytes(PNG_SIGNATURE.length);
+        bin.reset();
+
+        if (magic.length >= 2 && (magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == SOI)
+            return stripJpeg(new DataInputStream(bin), out);
+        if (Arrays.equals(magic, PNG_SIGNATURE))
+            return stripPng(new DataInputStream(bin), out);
+        return null;
+    }
+
+    private static Set<String> stripJpeg(DataInputStream in, OutputStream out) throws IOException {
+        Set<String> removed = new LinkedHashSet<>();
+        in.skipNBytes(2);
+        out.write(0xFF);
+        out.write(SOI);
+
+        while (true) {
+            int marker = nextMarker(in);
+            if (marker == SOS || marker == EOI) {
+                // Entropy-coded data and everything after it is copied verbatim
+                out.write(0xFF);
+                out.write(marker);
+                StreamUtils.copy(in, out);
+                return removed;
+            }
+            if ((marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+                // Standalone markers carry no length
+                out.write(0xFF);
+                out.write(marker);
+                continue;
+            }
+
+            int length = in.readUnsignedShort();
+            if (length < 2)
+                throw new EOFException("Corrupt JPEG segment length");
+            int payloadLength = length - 2;
+
+            if (marker == APP1) {
+                byte[] payload = in.readNBytes(payloadLength);
+                if (payload.length < payloadLength)
+                    throw new EOFException("Truncated JPEG segment");
+                if (startsWith(payload, EXIF_HEADER)) {
+                    removed.add("EXIF");
+                    // Keep the photo upright: carry the orientation over in a minimal EXIF block
+                    int orientation = readOrientation(payload);
+                    if (orientation > 1)
+                        out.write(orientationSegment(orientation));
+                } else if (startsWith(payload, XMP_HEADER)) {
+                    removed.add("XMP");
+                } else {
+                    removed.add("APP1");
+                }
+            } else if (marker == APP13) {
+                removed.add("IPTC");
+                in.skipNBytes(payloadLength);
+            } else if (marker == COM) {
+                removed.add("Comment");
+                in.skipNBytes(payloadLength);
+            } else {
+                out.write(0xFF);
+                out.write(marker);
+                out.write(length >> 8);
+                out.write(length);
+                copy(in, out, payloadLength);
+            }
+        }
+    }
+
+    /**
+     * Read up to the next marker code, skipping 0xFF fill bytes
+     */
+    private static int nextMarker(DataInputStream in) throws IOException {
+        int b = in.readUnsignedByte();
+        if (b != 0xFF)
+            throw new IOException("Corrupt JPEG: expected a marker");
+        do {
+            b = in.readUnsignedByte();
+        } while (b == 0xFF);
+        return b;
+    }
+
+    private static int readOrientation(byte[] exifPayload) {
+        try {
+            Metadata metadata = new Metadata();
+            new ExifReader().extract(new ByteArrayReader(exifPayload), metadata, EXIF_HEADER.length);
+            ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            if (ifd0 != null && ifd0.containsTag(ExifIFD0Directory.TAG_ORIENTATION))
+                return ifd0.getInt(ExifIFD0Directory.TAG_ORIENTATION);
+        } catch (Exception ignored) {
+            // Unreadable EXIF; drop it entirely
+        }
+        return 1;
+    }
+
+    /**
+     * APP1 segment holding a big-endian TIFF header and a single IFD0 entry: Orientation
+     */
+    private static byte[] orientationSegment(int orientation) {
+        ByteArrayOutputStream seg = new ByteArrayOutputStream(40);
+        DataOutputStream d = new DataOutputStream(seg);
+        try {
+            d.writeShort(0xFF00 | APP1);
+            d.writeShort(2 + EXIF_HEADER.length + 26);
+            d.write(EXIF_HEADER);
+            d.writeBytes("MM");
+            d.writeShort(42);
+            d.writeInt(8); // IFD0 offset
+            d.writeShort(1); // entry count
+            d.writeShort(0x0112); // Orientation
+            d.writeShort(3); // SHORT
+            d.writeInt(1);
+            d.writeShort(orientation);
+            d.writeShort(0); // padding
+            d.writeInt(0); // no next IFD
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return seg.toByteArray();
+    }
+
+    private static Set<String> stripPng(DataInputStream in, OutputStream out) throws IOException {
+        Set<String> removed = new LinkedHashSet<>();
+        byte[] signature = in.readNBytes(PNG_SIGNATURE.length);
+        out.write(signature);
+
+        byte[] header = new byte[8];
+        while (true) {
+            int n = in.readNBytes(header, 0, 8);
+            if (n == 0)
+                return removed; // missing IEND; keep what there is
+            if (n < 8)
+                throw new EOFException("Truncated PNG chunk header");
+
+            long length = ((header[0] & 0xFFL) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8)
+                    | (header[3] & 0xFF);
+            String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+            long bodyLength = length + 4; // data + CRC
+
+            if (PNG_METADATA_CHUNKS.contains(type)) {
+                removed.add(type);
+                in.skipNBytes(bodyLength);
+                continue;
+            }
+            out.write(header);
+            copy(in, out, bodyLength);
+            if (type.equals("IEND"))
+                return removed;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1)
+                throw new EOFException("Unexpected end of image data");
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+}
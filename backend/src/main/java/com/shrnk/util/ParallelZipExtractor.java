@@ -0,0 +1,183 @@
+package com.shrnk.util;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.enums.EncryptionMethod;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Multi-threaded ZIP extraction.
+ * Every entry is its own task, queued largest first, so a fair pool can run other sessions' work
+ * between the entries of one big archive. A task borrows an archive handle (with its own read
+ * position) from a small set shared by the extraction and hands it back when done, so at most one
+ * handle per concurrently running task is ever opened. Works for AES-encrypted archives, since
+ * zip4j decrypts per entry stream.
+ */
+public class ParallelZipExtractor {
+
+    private final Executor pool;
+
+    public ParallelZipExtractor(Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Progress callbacks, invoked from the extracting threads
+     */
+    public interface Listener {
+        /** Total uncompressed size of the entries about to be extracted; may veto the extraction */
+        void onStart(long totalBytes) throws IOException;
+
+        /** An entry is about to be written */
+        void onEntry(String name);
+
+        /** Bytes written since the last call */
+        void onBytes(long bytes);
+
+        /** An entry's file is complete; crc is its CRC-32, checked against the archive as it was read */
+        void onWritten(Path file, long crc) throws IOException;
+    }
+
+    /**
+     * Extract the entries accepted by the filter into outputDir and return the written files
+     */
+    public List<File> extract(File zipFile, char[] password, Path outputDir, Predicate<FileHeader> filter,
+            Listener listener) throws IOException {
+        List<FileHeader> headers;
+        try (ZipFile zip = open(zipFile, password)) {
+            headers = new ArrayList<>(zip.getFileHeaders());
+        }
+
+        Path root = outputDir.toAbsolutePath().normalize();
+        List<FileHeader> files = new ArrayList<>();
+        List<File> extracted = new ArrayList<>();
+        long totalBytes = 0;
+        for (FileHeader header : headers) {
+            if (!filter.test(header))
+                continue;
+            Path target = resolveSafely(root, header.getFileName());
+            if (header.isDirectory()) {
+                Files.createDirectories(target);
+            } else {
+                files.add(header);
+                extracted.add(target.toFile());
+                totalBytes += header.getUncompressedSize();
+            }
+        }
+
+        // Largest first, so one big entry never starts last and leaves the other workers idle
+        List<FileHeader> queue = new ArrayList<>(files);
+        queue.sort(Comparator.comparingLong(FileHeader::getUncompressedSize).reversed());
+
+        if (listener != null)
+            listener.onStart(totalBytes);
+
+        Queue<ZipFile> handles = new ConcurrentLinkedQueue<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        AtomicBoolean finished = new AtomicBoolean();
+        List<Future<Void>> futures = new ArrayList<>(queue.size());
+        try {
+            for (FileHeader header : queue) {
+                FutureTask<Void> task = new FutureTask<>(() -> {
+                    if (failed.get() || finished.get())
+                        return null; // another entry failed; the extraction is being abandoned
+                    ZipFile zip = handles.poll();
+                    if (zip == null)
+                        zip = open(zipFile, password);
+                    try {
+                        if (listener != null)
+                            listener.onEntry(header.getFileName());
+                        extractEntry(zip, header, resolveSafely(root, header.getFileName()), listener);
+                    } catch (IOException | RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        handles.add(zip);
+                        if (finished.get())
+                            closeAll(handles); // a cancelled task that outlived the extraction
+                    }
+                    return null;
+                });
+                futures.add(task);
+                pool.execute(task);
+            }
+            awaitAll(futures);
+        } finally {
+            finished.set(true);
+            for (Future<Void> f : futures) {
+                f.cancel(true);
+            }
+            closeAll(handles);
+        }
+        return extracted;
+    }
+
+    private void extractEntry(ZipFile zip, FileHeader header, Path target, Listener listener) throws IOException {
+        Files.createDirectories(target.getParent());
+        try (InputStream in = zip.getInputStream(header);
+                RandomAccessFile out = new RandomAccessFile(target.toFile(), "rw")) {
+            // Reserve the final size up front instead of growing the file write by write
+            out.setLength(header.getUncompressedSize());
+            long written = StreamUtils.copy(in, out.getChannel(), 0, Long.MAX_VALUE,
+                    listener != null ? listener::onBytes : null);
+            if (written != header.getUncompressedSize())
+                out.setLength(written);
+        }
+        // zip4j verifies the header CRC at the end of the entry; AES (AE-2) entries store none
+        if (listener != null && header.getEncryptionMethod() != EncryptionMethod.AES)
+            listener.onWritten(target, header.getCrc());
+    }
+
+    private static ZipFile open(File zipFile, char[] password) {
+        return password != null ? new ZipFile(zipFile, password) : new ZipFile(zipFile);
+    }
+
+    /**
+     * Resolve an entry name under root, rejecting entries that would escape it (zip slip)
+     */
+    private static Path resolveSafely(Path root, String name) throws IOException {
+        Path target = root.resolve(name).normalize();
+        if (!target.startsWith(root))
+            throw new IOException("Illegal entry path in archive: " + name);
+        return target;
+    }
+
+    private static void closeAll(Queue<ZipFile> handles) {
+        ZipFile zip;
+        while ((zip = handles.poll()) != null) {
+            try {
+                zip.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void awaitAll(List<Future<Void>> futures) throws IOException {
+        try {
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw new IOException("Extraction failed", e.getCause());
+        } finally {
+            for (Future<Void> f : futures) {
+                f.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.shrnk.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Multi-core DEFLATE ZIP writer.
+ * Entry data is cut into blocks that are deflated concurrently on a bounded pool and written
+ * back in order, pigz-style: every block but the last ends on a sync flush so the raw deflate
+ * streams concatenate into one valid stream, and each block is primed with the previous 32KB as
+ * its dictionary. The result is a standard ZIP readable by any unzip.
+ * <p>
+ * Blocks and their compressed output live in direct buffers from the {@link BufferPool}, which the
+ * Deflater reads and writes in place, so a large archive allocates nothing per block.
+ */
+public class ParallelZipWriter implements Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024; // 1MB
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int OUTPUT_CHUNK_SIZE = 256 * 1024;
+
+    // One deflater per level and worker thread: changing the level after setDictionary corrupts the stream
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[10]);
+
+    private final OutputStream out;
+    private final ZipStreamWriter zip;
+    private final Executor pool;
+    private final int level;
+    private final int blockSize;
+    private final int window;
+    private final Deque<Step> pending = new ArrayDeque<>();
+
+    /**
+     * @param parallelism number of pool threads available; bounds how many blocks are held in memory
+     */
+    public ParallelZipWriter(OutputStream out, int level, Executor pool, int parallelism, int blockSize) {
+        this.out = out;
+        this.zip = new ZipStreamWriter(out);
+        this.pool = pool;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.window = Math.max(4, parallelism * 4);
+    }
+
+    /**
+     * Read an entry's data on the calling thread and queue its blocks for compression
+     */
+    public void putEntry(String name, InputStream in, long expectedSize) throws IOException {
+        EntryState state = new EntryState();
+        enqueue(new Step() {
+            @Override
+            void write() throws IOException {
+                state.entry = zip.putNextEntry(name, ZipStreamWriter.METHOD_DEFLATE,
+                        ZipStreamWriter.needsZip64(expectedSize));
+            }
+        });
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+        Block previous = null;
+        BufferPool.Lease current = readBlock(in);
+        BufferPool.Lease next = null;
+        boolean done = false;
+        try {
+            while (true) {
+                // Read ahead one block: only the last block finishes the deflate stream
+                if (current.buffer().limit() == blockSize) {
+                    next = readBlock(in);
+                    if (!next.buffer().hasRemaining()) {
+                        next.close();
+                        next = null;
+                    }
+                }
+                boolean last = next == null;
+
+                crc.update(current.buffer().duplicate());
+                size += current.buffer().limit();
+                Block block = new Block(current, previous, last);
+                current = null;
+                enqueueBlock(state, block);
+
+                if (last)
+                    break;
+                previous = block;
+                current = next;
+                next = null;
+            }
+            done = true;
+        } finally {
+            if (current != null)
+                current.close();
+            if (next != null)
+                next.close();
+            // A block waiting for its successor to release it; its deflate may still be running
+            if (!done && previous != null)
+                previous.data.discard();
+        }
+
+        long crcValue = crc.getValue();
+        long uncompressed = size;
+        enqueue(new Step() {
+            @Override
+            void write() throws IOException {
+                state.entry.crc = crcValue;
+                state.entry.uncompressedSize = uncompressed;
+                state.entry.compressedSize = state.compressed;
+                zip.closeEntry(state.entry);
+            }
+        });
+    }
+
+    /**
+     * Wait for all queued blocks and write the central directory
+     */
+    public void finish() throws IOException {
+        drain(0);
+        zip.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (Step step : pending) {
+                step.cancel();
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void enqueueBlock(EntryState state, Block block) throws IOException {
+        // Queued before it is submitted, so a failure from here on still cancels and releases it
+        pending.addLast(new Step() {
+            @Override
+            boolean isDone() {
+                return block.task.isDone();
+            }
+
+            @Override
+            void write() throws IOException {
+                await(block.task);
+                List<BufferPool.Lease> output = block.takeOutput();
+                try {
+                    for (BufferPool.Lease chunk : output) {
+                        state.compressed += chunk.buffer().remaining();
+                        zip.write(chunk.buffer());
+                    }
+                } finally {
+                    for (BufferPool.Lease chunk : output)
+                        chunk.close();
+                    block.release();
+                }
+            }
+
+            @Override
+            void cancel() {
+                block.abandon();
+            }
+        });
+        pool.execute(block.task);
+        drain(window);
+    }
+
+    private void enqueue(Step step) throws IOException {
+        pending.addLast(step);
+        drain(window);
+    }
+
+    /**
+     * Write completed steps in order; block on the oldest one while more than maxPending are queued
+     */
+    private void drain(int maxPending) throws IOException {
+        while (!pending.isEmpty()) {
+            Step head = pending.peekFirst();
+            if (pending.size() <= maxPending && !head.isDone())
+                return;
+            head.write();
+            pending.pollFirst();
+        }
+    }
+
+    /**
+     * Deflate a block into chunks leased from the pool, ready to be read
+     */
+    private List<BufferPool.Lease> deflate(ByteBuffer data, ByteBuffer previous, boolean last) {
+        Deflater[] deflaters = DEFLATERS.get();
+        if (deflaters[level] == null)
+            deflaters[level] = new Deflater(level, true);
+        Deflater deflater = deflaters[level];
+        deflater.reset();
+        if (previous != null) {
+            int dictLen = Math.min(DICTIONARY_SIZE, previous.limit());
+            deflater.setDictionary(previous.slice(previous.limit() - dictLen, dictLen));
+        }
+        deflater.setInput(data);
+
+        List<BufferPool.Lease> output = new ArrayList<>();
+        try {
+            if (last)
+                deflater.finish();
+            while (true) {
+                ByteBuffer chunk = output.isEmpty() ? null : output.get(output.size() - 1).buffer();
+                if (chunk == null || !chunk.hasRemaining()) {
+                    BufferPool.Lease lease = BufferPool.lease(OUTPUT_CHUNK_SIZE);
+                    output.add(lease);
+                    chunk = lease.buffer();
+                }
+                // Sync flush ends the block on a byte boundary without setting BFINAL; it is
+                // complete once a call leaves output space unused
+                deflater.deflate(chunk, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if (last ? deflater.finished() : chunk.hasRemaining())
+                    break;
+            }
+            for (BufferPool.Lease lease : output)
+                lease.buffer().flip();
+            return output;
+        } catch (RuntimeException e) {
+            for (BufferPool.Lease lease : output)
+                lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Lease a block and fill it from the stream; the buffer is flipped, so its limit is the length
+     */
+    private BufferPool.Lease readBlock(InputStream in) throws IOException {
+        BufferPool.Lease lease = BufferPool.lease(blockSize);
+        try {
+            StreamUtils.read(in, lease.buffer());
+            lease.buffer().flip();
+            return lease;
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * One block of entry data. Its buffer also primes the next block's dictionary, so it is
+     * returned to the pool by the next block (or by itself, if it is the entry's last). A block
+     * abandoned while its deflate may still be running has its buffers discarded rather than
+     * returned, since the deflate may still be reading or writing them.
+     */
+    private final class Block {
+        final BufferPool.Lease data;
+        final Block previous;
+        final boolean last;
+        final FutureTask<Void> task;
+        private List<BufferPool.Lease> output; // guarded by this
+        private boolean abandoned;             // guarded by this
+
+        Block(BufferPool.Lease data, Block previous, boolean last) {
+            this.data = data;
+            this.previous = previous;
+            this.last = last;
+            ByteBuffer dictionary = previous != null ? previous.data.buffer().duplicate() : null;
+            this.task = new FutureTask<>(() -> complete(deflate(data.buffer().duplicate(), dictionary, last)), null);
+        }
+
+        private synchronized void complete(List<BufferPool.Lease> deflated) {
+            if (abandoned) {
+                for (BufferPool.Lease chunk : deflated)
+                    chunk.discard();
+            } else {
+                output = deflated;
+            }
+        }
+
+        synchronized List<BufferPool.Lease> takeOutput() {
+            List<BufferPool.Lease> deflated = output;
+            output = null;
+            return deflated != null ? deflated : List.of();
+        }
+
+        /**
+         * After this block is written: its dictionary source, and its own data if nothing follows
+         */
+        void release() {
+            if (previous != null)
+                previous.data.close();
+            if (last)
+                data.close();
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+            task.cancel(false);
+            if (output != null) {
+                for (BufferPool.Lease chunk : output)
+                    chunk.discard();
+                output = null;
+            }
+            if (previous != null)
+                previous.data.discard();
+            if (last)
+                data.discard();
+        }
+    }
+
+    private static class EntryState {
+        ZipStreamWriter.Entry entry;
+        long compressed;
+    }
+
+    private abstract static class Step {
+        boolean isDone() {
+            return true;
+        }
+
+        abstract void write() throws IOException;
+
+        void cancel() {
+        }
+    }
+}
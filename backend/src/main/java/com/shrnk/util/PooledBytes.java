@@ -0,0 +1,295 @@
+package com.shrnk.util;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable in-memory payload (an encoded image, a small upload) held in fixed-size chunks leased
+ * from the {@link BufferPool}, instead of a ByteArrayOutputStream that copies itself on every
+ * doubling and once more in toByteArray. The content can be written and read at any position, so
+ * ImageIO readers and writers work on it directly without their own memory caches.
+ * <p>
+ * Not thread-safe, apart from {@link #close}, which returns the chunks to the pool and may be
+ * called more than once.
+ */
+public class PooledBytes implements AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final int chunkSize;
+    private final List<BufferPool.Lease> chunks = new ArrayList<>();
+    private long size;
+    private boolean closed; // guarded by this
+
+    public PooledBytes() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public PooledBytes(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Read a stream to its end
+     */
+    public static PooledBytes read(InputStream in) throws IOException {
+        return read(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read a stream to its end or up to limit bytes, straight into the chunks
+     */
+    public static PooledBytes read(InputStream in, long limit) throws IOException {
+        PooledBytes bytes = new PooledBytes();
+        try {
+            while (bytes.size < limit) {
+                int at = (int) (bytes.size % bytes.chunkSize);
+                ByteBuffer chunk = bytes.chunkFor(bytes.size).duplicate();
+                chunk.limit((int) Math.min(bytes.chunkSize, at + (limit - bytes.size))).position(at);
+                bytes.size += StreamUtils.read(in, chunk);
+                if (chunk.hasRemaining())
+                    break; // end of stream
+            }
+            return bytes;
+        } catch (IOException | RuntimeException e) {
+            bytes.close();
+            throw e;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Write len bytes at position, growing the content as needed
+     */
+    public void write(long position, byte[] b, int off, int len) {
+        while (len > 0) {
+            ByteBuffer chunk = chunkFor(position);
+            int at = (int) (position % chunkSize);
+            int n = Math.min(len, chunkSize - at);
+            chunk.put(at, b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+            size = Math.max(size, position);
+        }
+    }
+
+    /**
+     * Read up to len bytes at position; -1 at the end of the content
+     */
+    public int read(long position, byte[] b, int off, int len) {
+        if (position >= size)
+            return len == 0 ? 0 : -1;
+        int total = (int) Math.min(len, size - position);
+        int done = 0;
+        while (done < total) {
+            ByteBuffer chunk = chunks.get((int) (position / chunkSize)).buffer();
+            int at = (int) (position % chunkSize);
+            int n = Math.min(total - done, chunkSize - at);
+            chunk.get(at, b, off + done, n);
+            position += n;
+            done += n;
+        }
+        return total;
+    }
+
+    private void write(long position, int b) {
+        chunkFor(position).put((int) (position % chunkSize), (byte) b);
+        size = Math.max(size, position + 1);
+    }
+
+    private int read(long position) {
+        if (position >= size)
+            return -1;
+        return chunks.get((int) (position / chunkSize)).buffer().get((int) (position % chunkSize)) & 0xFF;
+    }
+
+    /**
+     * Append at the end
+     */
+    public OutputStream outputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                PooledBytes.this.write(size, b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                PooledBytes.this.write(size, b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Read from the start. Closing the stream releases the content.
+     */
+    public InputStream inputStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                int b = PooledBytes.this.read(position);
+                if (b >= 0)
+                    position++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                int n = PooledBytes.this.read(position, b, off, len);
+                if (n > 0)
+                    position += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, size - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, size - position);
+            }
+
+            @Override
+            public void close() {
+                PooledBytes.this.close();
+            }
+        };
+    }
+
+    /**
+     * A seekable ImageIO output over this content, for writers that patch headers after the data
+     */
+    public ImageOutputStream imageOutputStream() {
+        return new ImageOutputStreamImpl() {
+            @Override
+            public void write(int b) throws IOException {
+                checkClosed();
+                flushBits();
+                PooledBytes.this.write(streamPos++, b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkClosed();
+                flushBits();
+                PooledBytes.this.write(streamPos, b, off, len);
+                streamPos += len;
+            }
+
+            @Override
+            public int read() throws IOException {
+                checkClosed();
+                bitOffset = 0;
+                int b = PooledBytes.this.read(streamPos);
+                if (b >= 0)
+                    streamPos++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                checkClosed();
+                bitOffset = 0;
+                int n = PooledBytes.this.read(streamPos, b, off, len);
+                if (n > 0)
+                    streamPos += n;
+                return n;
+            }
+
+            @Override
+            public long length() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * A seekable ImageIO input over this content; closing it leaves the content in place
+     */
+    public ImageInputStream imageInputStream() {
+        return new ImageInputStreamImpl() {
+            @Override
+            public int read() throws IOException {
+                checkClosed();
+                bitOffset = 0;
+                int b = PooledBytes.this.read(streamPos);
+                if (b >= 0)
+                    streamPos++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                checkClosed();
+                bitOffset = 0;
+                int n = PooledBytes.this.read(streamPos, b, off, len);
+                if (n > 0)
+                    streamPos += n;
+                return n;
+            }
+
+            @Override
+            public long length() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Write the whole content to out
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        long remaining = size;
+        for (int i = 0; remaining > 0; i++) {
+            ByteBuffer chunk = chunks.get(i).buffer().duplicate();
+            chunk.limit((int) Math.min(chunkSize, remaining)).position(0);
+            remaining -= chunk.remaining();
+            StreamUtils.write(chunk, out);
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[Math.toIntExact(size)];
+        read(0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (BufferPool.Lease chunk : chunks)
+            chunk.close();
+        chunks.clear();
+        size = 0;
+    }
+
+    private ByteBuffer chunkFor(long position) {
+        int index = (int) (position / chunkSize);
+        while (chunks.size() <= index) {
+            if (closed)
+                throw new IllegalStateException("Pooled bytes already released");
+            chunks.add(BufferPool.lease(chunkSize));
+        }
+        return chunks.get(index).buffer();
+    }
+}
@@ -0,0 +1,116 @@
+package com.shrnk.util;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * An uploaded file that has been moved into a session directory, so it outlives the request.
+ * Multipart parts are deleted when their request ends; background jobs read these instead.
+ */
+public class SavedUpload implements MultipartFile {
+
+    private final String name;
+    private final String originalFilename;
+    private final String contentType;
+    private final Path path;
+    private final boolean shared;
+    private final String contentHash;
+
+    private SavedUpload(MultipartFile source, Path path) {
+        this(source.getName(), source.getOriginalFilename(), source.getContentType(), path, false, null);
+    }
+
+    private SavedUpload(String name, String originalFilename, String contentType, Path path, boolean shared,
+            String contentHash) {
+        this.name = name;
+        this.originalFilename = originalFilename;
+        this.contentType = contentType;
+        this.path = path;
+        this.shared = shared;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Move an upload to the given file; disk-spooled parts are renamed rather than copied
+     */
+    public static SavedUpload save(MultipartFile file, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        file.transferTo(target.toAbsolutePath().toFile());
+        return new SavedUpload(file, target);
+    }
+
+    /**
+     * Wrap a file that other jobs may also read, such as a committed chunked upload, with its
+     * SHA-256 if already known (may be null). transferTo links or copies it instead of moving it.
+     */
+    public static SavedUpload of(Path path, String originalFilename, String contentHash) {
+        return new SavedUpload("file", originalFilename, null, path, true, contentHash);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * SHA-256 of the content in hex, or null if it was not computed
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        return originalFilename;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getSize() == 0;
+    }
+
+    @Override
+    public long getSize() {
+        return path.toFile().length();
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        return Files.readAllBytes(path);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException {
+        if (!shared) {
+            Files.move(path, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        Files.deleteIfExists(dest.toPath());
+        try {
+            Files.createLink(dest.toPath(), path);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            StreamUtils.copy(path, dest.toPath());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.shrnk.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared backing executor.
+ * No thread is tied to the executor while it has nothing queued.
+ */
+public class SerialExecutor implements Executor {
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final Executor backing;
+    private Runnable active;
+
+    public SerialExecutor(Executor backing) {
+        this.backing = backing;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.addLast(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (active == null)
+            scheduleNext();
+    }
+
+    private synchronized void scheduleNext() {
+        active = tasks.pollFirst();
+        if (active != null)
+            backing.execute(active);
+    }
+}
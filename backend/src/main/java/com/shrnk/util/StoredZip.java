@@ -0,0 +1,181 @@
+package com.shrnk.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An uncompressed (STORE) ZIP of existing files, generated on request instead of written to disk.
+ * Its layout depends only on the entries' names, sizes and modification times, so its length is
+ * known before any file is read, and any byte range can be generated on its own: entry data
+ * before the range is skipped unread. Entries carry their CRC in the local header (no data
+ * descriptor, which many readers refuse on stored entries), so it is needed before the data
+ * whenever that header or the central directory is sent. It comes from the caller's
+ * {@link Checksums}, or is computed from the file first and handed back to them.
+ */
+public class StoredZip {
+
+    /**
+     * One file and its name in the archive
+     */
+    public record Entry(String name, Path path, long size, long modified) {
+        /**
+         * Identifies the file's content: path, size and modification time, so a changed file is
+         * never matched
+         */
+        public String key() {
+            return path.toAbsolutePath().normalize() + "|" + size + "|" + modified;
+        }
+    }
+
+    /**
+     * CRCs already known for entries' files
+     */
+    public interface Checksums {
+        /** The entry's CRC, or null if unknown */
+        Long get(Entry entry);
+
+        /** Remember a CRC computed for the entry */
+        void put(Entry entry, long crc);
+    }
+
+    private final List<Entry> entries;
+    private final Checksums checksums;
+    private final long length;
+    private long centralDirectory; // offset, set by the dry run
+
+    public StoredZip(List<Entry> entries, Checksums checksums) throws IOException {
+        this.entries = List.copyOf(entries);
+        this.checksums = checksums;
+        // A dry run that skips every data byte yields the exact layout
+        Window dryRun = new Window(null, 0, Long.MAX_VALUE);
+        render(dryRun, false);
+        this.length = dryRun.position;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Write count bytes of the archive starting at position
+     */
+    public void write(long position, long count, OutputStream out) throws IOException {
+        Window window = new Window(out, position, position + count);
+        render(window, true);
+        window.flush();
+    }
+
+    private void render(Window window, boolean live) throws IOException {
+        ZipStreamWriter zip = new ZipStreamWriter(window);
+        for (Entry entry : entries) {
+            if (window.isPast())
+                return;
+            long dataStart = window.position + ZipStreamWriter.storedHeaderLength(entry.name(), entry.size());
+            long dataEnd = dataStart + entry.size();
+            // The CRC is only sent in the local header and the central directory
+            boolean needCrc = live && (window.start < dataStart || window.end > centralDirectory);
+            ZipStreamWriter.Entry ze = zip.putStoredEntry(entry.name(), entry.size(), needCrc ? crc(entry) : 0,
+                    entry.modified());
+
+            // The data goes straight to the window; the writer only counts it
+            zip.skip(entry.size());
+            long from = Math.max(window.start, dataStart);
+            long to = Math.min(window.end, dataEnd);
+            if (!live || from >= to) {
+                window.skip(entry.size());
+            } else {
+                window.skip(from - dataStart);
+                try (FileChannel ch = FileChannel.open(entry.path(), StandardOpenOption.READ)) {
+                    StreamUtils.copy(ch, from - dataStart, to - from, window);
+                }
+                window.skip(dataEnd - to);
+            }
+            zip.closeEntry(ze);
+        }
+        if (window.isPast())
+            return;
+        if (!live)
+            centralDirectory = window.position;
+        zip.finish();
+    }
+
+    /**
+     * CRC of a whole file, as recorded or by reading it
+     */
+    private long crc(Entry entry) throws IOException {
+        Long known = checksums.get(entry);
+        if (known != null)
+            return known;
+        CRC32 crc = new CRC32();
+        try (FileChannel ch = FileChannel.open(entry.path(), StandardOpenOption.READ);
+                BufferPool.Lease lease = BufferPool.lease(StreamUtils.getBufferSize())) {
+            ByteBuffer buffer = lease.buffer();
+            long done = 0;
+            while (done < entry.size()) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), entry.size() - done));
+                int n = ch.read(buffer, done);
+                if (n == -1)
+                    throw new EOFException("File shrank while sending: " + entry.name());
+                crc.update(buffer.flip());
+                done += n;
+            }
+        }
+        long value = crc.getValue();
+        checksums.put(entry, value);
+        return value;
+    }
+
+    /**
+     * Passes on only the bytes of the archive between start and end (none without an output),
+     * tracking the archive position
+     */
+    private static class Window extends OutputStream {
+        final OutputStream out;
+        final long start;
+        final long end;
+        long position;
+
+        Window(OutputStream out, long start, long end) {
+            this.out = out;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isPast() {
+            return position >= end;
+        }
+
+        void skip(long n) {
+            position += n;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out != null && position >= start && position < end)
+                out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long from = Math.max(start, position);
+            long to = Math.min(end, position + len);
+            if (out != null && from < to)
+                out.write(b, off + (int) (from - position), (int) (to - from));
+            position += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null)
+                out.flush();
+        }
+    }
+}
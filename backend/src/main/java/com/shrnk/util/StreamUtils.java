@@ -1,35 +1,286 @@
 package com.shrnk.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.LongConsumer;
 
+/**
+ * Central I/O helpers. File-to-file copies go through FileChannel.transferTo/transferFrom, so the
+ * kernel moves the bytes (copy_file_range/sendfile). Stream copies use large pooled buffers
+ * (1 MB by default, see {@link #configure}) instead of a fresh 8 KB array per call, also when the
+ * other side is a channel.
+ * Copies take an optional callback that receives the byte count of each chunk as it is written.
+ */
 public class StreamUtils {
 
-    private static final int BUFFER_SIZE = 8192; // 8KB
+    private static volatile int bufferSize = 1024 * 1024;
+    private static volatile BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(32);
+
+    private StreamUtils() {
+    }
 
     /**
-     * Copy from input to output using 8KB buffered streaming
+     * Set the copy buffer size and how many idle buffers are kept for reuse
+     */
+    public static void configure(int size, int pooledBuffers) {
+        bufferSize = size;
+        pool = new ArrayBlockingQueue<>(Math.max(1, pooledBuffers));
+    }
+
+    public static int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Copy from input to output until end of stream
      */
     public static long copy(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        long total = 0;
-        int read;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-            total += read;
+        return copy(in, out, null);
+    }
+
+    /**
+     * Copy from input to output until end of stream, reporting each chunk written to progress
+     */
+    public static long copy(InputStream in, OutputStream out, LongConsumer progress) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+                if (progress != null)
+                    progress.accept(read);
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Write up to limit bytes from input into a file channel starting at position, with positional
+     * writes (the channel's own position is untouched). Returns the number of bytes written, which
+     * is less than limit only if the stream ended first.
+     */
+    public static long copy(InputStream in, FileChannel out, long position, long limit, LongConsumer progress)
+            throws IOException {
+        if (in instanceof FileInputStream fin) {
+            // File to file: let the kernel move it
+            FileChannel src = fin.getChannel();
+            long total = 0;
+            while (total < limit) {
+                long n = out.transferFrom(src, position + total, limit - total);
+                if (n <= 0)
+                    break;
+                total += n;
+                if (progress != null)
+                    progress.accept(n);
+            }
+            return total;
+        }
+
+        // A stream only reads into arrays, so one copy to native memory is unavoidable; the channel
+        // makes it itself, without a second pooled buffer to stage through
+        byte[] buffer = acquire();
+        try {
+            long total = 0;
+            while (total < limit) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total));
+                if (read == -1)
+                    break;
+                ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+                while (src.hasRemaining())
+                    out.write(src, position + total + src.position());
+                total += read;
+                if (progress != null)
+                    progress.accept(read);
+            }
+            return total;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Copy a file in the kernel, replacing the target
+     */
+    public static long copy(Path source, Path target) throws IOException {
+        return copy(source, target, null);
+    }
+
+    public static long copy(Path source, Path target, LongConsumer progress) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long n = transfer(in, 0, size, out, progress);
+            if (n < size)
+                throw new EOFException("File shrank while copying: " + source);
+            return n;
+        }
+    }
+
+    /**
+     * Send count bytes of a file starting at position to an output stream with positional reads
+     * into a pooled buffer (the channel's own position is untouched). A file output gets a kernel
+     * transferTo instead; any other stream only writes arrays, so the one heap copy is the minimum.
+     */
+    public static void copy(FileChannel in, long position, long count, OutputStream out) throws IOException {
+        if (out instanceof FileOutputStream fout) {
+            if (transfer(in, position, count, fout.getChannel(), null) < count)
+                throw new EOFException("Unexpected end of file while sending");
+            return;
+        }
+        byte[] buffer = acquire();
+        try {
+            long remaining = count;
+            while (remaining > 0) {
+                int read = in.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining)), position);
+                if (read == -1)
+                    throw new EOFException("Unexpected end of file while sending");
+                out.write(buffer, 0, read);
+                position += read;
+                remaining -= read;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Fill a buffer from a stream, stopping early only at end of stream. Returns the bytes read.
+     */
+    public static int read(InputStream in, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        if (in instanceof FileInputStream fin) {
+            FileChannel channel = fin.getChannel();
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) == -1)
+                    break;
+            }
+            return dst.position() - start;
+        }
+
+        byte[] buffer = acquire();
+        try {
+            while (dst.hasRemaining()) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, dst.remaining()));
+                if (read == -1)
+                    break;
+                dst.put(buffer, 0, read);
+            }
+            return dst.position() - start;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Write a buffer's remaining bytes to a stream, through a pooled array unless it has its own
+     */
+    public static void write(ByteBuffer src, OutputStream out) throws IOException {
+        if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+        byte[] buffer = acquire();
+        try {
+            while (src.hasRemaining()) {
+                int n = Math.min(buffer.length, src.remaining());
+                src.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            release(buffer);
         }
-        return total;
     }
 
     /**
-     * Save a stream to a file with buffered I/O
+     * Save a stream to a file, replacing it
      */
     public static File saveToFile(InputStream in, File target) throws IOException {
-        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE)) {
-            copy(in, out);
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            copy(in, out, 0, Long.MAX_VALUE, null);
         }
         return target;
     }
 
+    /**
+     * Wrap an output stream so that closing the wrapper leaves the target open
+     */
+    public static OutputStream nonClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Wrap an input stream so that every byte read (or skipped) is reported to counter
+     */
+    public static InputStream counting(InputStream in, LongConsumer counter) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b != -1)
+                    counter.accept(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0)
+                    counter.accept(n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = in.skip(n);
+                if (skipped > 0)
+                    counter.accept(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Wrap an output stream so that every byte written is reported to counter
+     */
+    public static OutputStream counting(OutputStream out, LongConsumer counter) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                counter.accept(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                counter.accept(len);
+            }
+        };
+    }
+
     /**
      * Format bytes to human-readable string
      */
@@ -42,4 +293,32 @@ public class StreamUtils {
             return String.format("%.1f MB", bytes / (1024.0 * 1024));
         return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
     }
+
+    /**
+     * transferTo loop: up to count bytes from position, or fewer if the file is shorter
+     */
+    private static long transfer(FileChannel in, long position, long count, WritableByteChannel out,
+            LongConsumer progress) throws IOException {
+        long end = Math.min(in.size(), position + count);
+        long done = 0;
+        while (position + done < end) {
+            long n = in.transferTo(position + done, end - position - done, out);
+            if (n <= 0)
+                break;
+            done += n;
+            if (progress != null)
+                progress.accept(n);
+        }
+        return done;
+    }
+
+    private static byte[] acquire() {
+        byte[] buffer = pool.poll();
+        return buffer != null && buffer.length == bufferSize ? buffer : new byte[bufferSize];
+    }
+
+    private static void release(byte[] buffer) {
+        if (buffer.length == bufferSize)
+            pool.offer(buffer);
+    }
 }
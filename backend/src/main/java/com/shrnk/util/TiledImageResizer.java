@@ -0,0 +1,817 @@
+package com.shrnk.util;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resizes images too large to decode in one piece, without holding the whole output either.
+ * The result is a {@link BandedImage} whose rows are computed as the encoder reads them, top to
+ * bottom: each band of output rows is area-averaged from the source rows it covers, so peak memory
+ * is a few output bands plus the decoder's working rows, whatever the source and output sizes.
+ * <p>
+ * JPEGs and non-interlaced PNGs are decoded once, on a task of the given executor, into a destination that
+ * keeps only a ring of recent rows; each row is consumed as the decoder reports it (for a
+ * progressive JPEG, as it reports its final pass). Other sources, such as interlaced PNGs, are
+ * read band by band through {@link ImageReadParam#setSourceRegion}, which decodes from the start
+ * of the image for every band.
+ * Band boundaries follow output rows, so no output pixel straddles two bands and there are no seams.
+ */
+public class TiledImageResizer {
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int RING_ROWS = 16;
+    private static final int QUEUED_BANDS = 2;
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private TiledImageResizer() {
+    }
+
+    /**
+     * Estimated heap needed to decode an image of the given size in one piece
+     */
+    public static long decodedBytes(int width, int height) {
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Resize image 0 of the reader to targetW x targetH using about budgetBytes of memory.
+     * Every subsample-th source row and column is decoded; pass 1 to read every pixel. Without
+     * keepAlpha, transparent pixels are composited over black, as an opaque format's encoder would.
+     * A one-pass decode runs on decoder, which must not be bounded by the thread that will read the
+     * image. The reader stays in use until the returned image is closed.
+     */
+    public static BandedImage resize(ImageReader reader, int targetW, int targetH, int subsample,
+            boolean keepAlpha, long budgetBytes, Executor decoder) throws IOException {
+        if ((long) targetW * targetH > Integer.MAX_VALUE)
+            throw new IOException("Image too large to process: " + targetW + "x" + targetH);
+
+        ImageTypeSpecifier raw = reader.getRawImageType(0);
+        boolean alpha = keepAlpha && (raw == null || raw.getColorModel().hasAlpha());
+        Layout layout = new Layout(reader.getWidth(0), reader.getHeight(0), targetW, targetH, subsample, alpha);
+
+        // Output bands: one being filled, the queued ones and the one being encoded
+        long bandBudget = budgetBytes / 2 / (QUEUED_BANDS + 2);
+        int rowsPerBand = (int) Math.max(1, Math.min(targetH, bandBudget / decodedBytes(targetW, 1)));
+        int scans = onePassScans(reader);
+        if (scans > 0)
+            return new BandedImage(layout, new DecodedBands(reader, layout, rowsPerBand, scans, decoder));
+
+        // Leave the decoder headroom for its own buffers on top of each source region
+        long regionRows = Math.max(1, budgetBytes / 2 / (decodedBytes(layout.decodedW, 1) * 2));
+        int regionOutRows = (int) Math.max(1, regionRows * subsample / Math.max(layout.scaleY, 1.0));
+        return new BandedImage(layout, new RegionBands(reader, layout, Math.min(rowsPerBand, regionOutRows)));
+    }
+
+    /**
+     * The number of progressive scans if the reader can report each row once, top to bottom, into a
+     * destination this class can keep as a ring of rows; otherwise 0. A progressive JPEG's passes
+     * each cover every row, so its last one will do; an interlaced PNG's last pass holds only some.
+     */
+    private static int onePassScans(ImageReader reader) throws IOException {
+        String format = reader.getFormatName().toLowerCase();
+        if (!format.equals("jpeg") && !format.equals("png"))
+            return 0;
+        if (RingBuffer.scanlineStride(reader.getImageTypes(0).next().getSampleModel(1, 1)) < 0)
+            return 0;
+
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported())
+            return 0;
+        int scans = 1;
+        Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (!node.getNodeName().equals("Compression"))
+                continue;
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeName().equals("NumProgressiveScans")) {
+                    Node value = child.getAttributes().getNamedItem("value");
+                    scans = value != null ? Integer.parseInt(value.getNodeValue()) : 0;
+                }
+            }
+        }
+        return format.equals("png") && scans > 1 ? 0 : scans;
+    }
+
+    /**
+     * A resized image produced a band at a time as its rows are read. Rows must be read top to
+     * bottom, as the JPEG and PNG writers do; {@link #copyData} fills a whole raster if needed.
+     * Closing it stops the decoder.
+     */
+    public static final class BandedImage implements RenderedImage, Closeable {
+        private final int width;
+        private final int height;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+        private final Bands bands;
+        private int[] band;
+        private int bandStart;
+        private int bandEnd; // rows [bandStart, bandEnd) are in band
+        private Raster tile;
+
+        private BandedImage(Layout layout, Bands bands) {
+            this.width = layout.targetW;
+            this.height = layout.targetH;
+            this.colorModel = layout.alpha ? ColorModel.getRGBdefault()
+                    : new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+            this.sampleModel = colorModel.createCompatibleSampleModel(width, height);
+            this.bands = bands;
+        }
+
+        /**
+         * Offset of row y in the current band, moving on to the band that holds it
+         */
+        private int offset(int y) {
+            if (y < bandStart)
+                throw new IllegalStateException("Rows of a banded image must be read top to bottom");
+            while (y >= bandEnd) {
+                try {
+                    band = bands.next();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                bandStart = bandEnd;
+                bandEnd = bandStart + band.length / width;
+            }
+            return (y - bandStart) * width;
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null)
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            Rectangle r = raster.getBounds().intersection(new Rectangle(width, height));
+            int[] row = new int[r.width];
+            for (int y = r.y; y < r.y + r.height; y++) {
+                int at = offset(y) + r.x;
+                System.arraycopy(band, at, row, 0, r.width);
+                raster.setDataElements(r.x, y, r.width, 1, row);
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster raster = colorModel.createCompatibleWritableRaster(rect.width, rect.height);
+            return copyData(raster.createWritableTranslatedChild(rect.x, rect.y));
+        }
+
+        @Override
+        public Raster getData() {
+            return copyData(null);
+        }
+
+        /**
+         * The whole image as one tile, whose samples are produced as they are read
+         */
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            if (tile == null)
+                tile = Raster.createRaster(sampleModel, new RowData(), new Point(0, 0));
+            return tile;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return height;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        /**
+         * Stop the decoder, then run release to free what it was using (the reader, its memory).
+         * A decoder that doesn't stop within a few seconds is interrupted and left to run release
+         * itself once it does, so closing never blocks for long.
+         */
+        public void close(Runnable release) {
+            bands.close(release);
+        }
+
+        @Override
+        public void close() {
+            close(() -> {
+            });
+        }
+
+        /**
+         * Packed pixels of the whole image, read through the current band
+         */
+        private final class RowData extends DataBuffer {
+            RowData() {
+                super(TYPE_INT, width * height);
+            }
+
+            @Override
+            public int getElem(int bank, int i) {
+                int y = i / width;
+                int at = offset(y) + i - y * width;
+                return band[at];
+            }
+
+            @Override
+            public void setElem(int bank, int i, int val) {
+                throw new UnsupportedOperationException("Banded images are read-only");
+            }
+        }
+    }
+
+    /**
+     * Output rows, a band at a time from the top; a band is rows * targetW packed pixels
+     */
+    private interface Bands {
+        int[] next() throws IOException;
+
+        void close(Runnable release);
+    }
+
+    /**
+     * Decodes the image once on a helper thread and hands over output bands as they fill. The
+     * decoder writes into a destination that keeps only the last {@link #RING_ROWS} rows, and
+     * reports each row as it lands; the listener folds it into the output rows it covers.
+     */
+    private static final class DecodedBands implements Bands, IIOReadUpdateListener, Runnable {
+        private static final Object END = new Object();
+
+        private final ImageReader reader;
+        private final Layout layout;
+        private final int rowsPerBand;
+        private final ImageReadParam param;
+        private final BlockingQueue<Object> ready = new ArrayBlockingQueue<>(QUEUED_BANDS);
+        private final FutureTask<Void> task;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private volatile boolean closed;
+        private boolean started; // guarded by this
+        private Runnable release; // guarded by this; left for the decoder by a close that timed out
+
+        // Decoder thread only
+        private final int[] first;
+        private final int[] end;
+        private final int[] row;
+        private final Accumulator accumulator;
+        private final int lastPass;
+        private int pass;
+        private int nextRow;
+        private int oy;
+        private int bandStart;
+        private int[] band;
+        private IOException failure;
+        private boolean interrupted;
+
+        DecodedBands(ImageReader reader, Layout layout, int rowsPerBand, int scans, Executor decoder)
+                throws IOException {
+            this.reader = reader;
+            this.layout = layout;
+            this.rowsPerBand = rowsPerBand;
+            this.lastPass = scans - 1;
+            this.first = new int[layout.targetH];
+            this.end = new int[layout.targetH];
+            for (int y = 0; y < layout.targetH; y++) {
+                int[] span = span(y, layout.scaleY, 0, layout.subsample, layout.decodedH);
+                first[y] = span[0];
+                end[y] = span[1];
+            }
+            this.row = new int[layout.decodedW];
+            this.accumulator = new Accumulator(layout);
+            this.band = new int[Math.min(rowsPerBand, layout.targetH) * layout.targetW];
+
+            ImageTypeSpecifier type = reader.getImageTypes(0).next();
+            SampleModel sampleModel = type.getSampleModel(layout.decodedW, layout.decodedH);
+            ColorModel colorModel = type.getColorModel();
+            WritableRaster ring = Raster.createWritableRaster(sampleModel, new RingBuffer(sampleModel), null);
+            param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(layout.subsample, layout.subsample, 0, 0);
+            param.setDestination(new BufferedImage(colorModel, ring, colorModel.isAlphaPremultiplied(), null));
+
+            reader.addIIOReadUpdateListener(this);
+            task = new FutureTask<>(this, null);
+            try {
+                decoder.execute(task);
+            } catch (RejectedExecutionException e) {
+                reader.removeIIOReadUpdateListener(this);
+                throw new IOException("No decoder available", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (closed)
+                    return; // closed before it started; close has cleaned up
+                started = true;
+            }
+            Runnable pending;
+            try {
+                Object last = decode();
+                if (last != null)
+                    hand(last);
+            } finally {
+                reader.removeIIOReadUpdateListener(this);
+                synchronized (this) {
+                    stopped.countDown();
+                    pending = release;
+                }
+            }
+            if (pending != null)
+                pending.run();
+        }
+
+        /**
+         * Read the whole image, returning what to hand over last: the end, a failure, or nothing
+         * once closed
+         */
+        private Object decode() {
+            try {
+                reader.read(0, param);
+                if (closed)
+                    return null;
+                if (failure != null)
+                    return failure;
+                // A truncated image leaves the rows it never reached empty
+                while (oy < layout.targetH)
+                    emit();
+                return END;
+            } catch (IOException | RuntimeException | Error e) {
+                return e;
+            }
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY, int width, int height,
+                int periodX, int periodY, int[] bands) {
+            if (closed || interrupted || failure != null) {
+                source.abort();
+                return;
+            }
+            if (pass != lastPass)
+                return;
+            if (minY != nextRow || periodY != 1 || height > RING_ROWS || minX != 0 || width != layout.decodedW) {
+                failure = new IIOException("Decoder did not report rows top to bottom");
+                source.abort();
+                return;
+            }
+            for (int y = minY; y < minY + height; y++) {
+                image.getRGB(0, y, layout.decodedW, 1, row, 0, layout.decodedW);
+                // Every output row whose span ends here is complete; upscaled rows can share a source row
+                while (oy < layout.targetH && first[oy] <= y) {
+                    accumulator.add(row);
+                    if (y < end[oy] - 1)
+                        break;
+                    emit();
+                }
+            }
+            nextRow = minY + height;
+        }
+
+        /**
+         * Finish output row oy, handing over its band once full
+         */
+        private void emit() {
+            accumulator.resolve(band, (oy - bandStart) * layout.targetW);
+            oy++;
+            if (oy - bandStart == rowsPerBand || oy == layout.targetH) {
+                hand(band);
+                bandStart = oy;
+                band = new int[Math.min(rowsPerBand, layout.targetH - oy) * layout.targetW];
+            }
+        }
+
+        /**
+         * Queue a band (or the end, or a failure) for the encoder, unless it has gone away
+         */
+        private void hand(Object item) {
+            if (interrupted)
+                return;
+            try {
+                while (!closed) {
+                    if (ready.offer(item, 100, TimeUnit.MILLISECONDS))
+                        return;
+                }
+            } catch (InterruptedException e) {
+                // Told to stop: keep the flag for the executor, and stop at the next row
+                Thread.currentThread().interrupt();
+                interrupted = true;
+                reader.abort();
+            }
+        }
+
+        @Override
+        public int[] next() throws IOException {
+            Object item;
+            try {
+                // An interrupted decoder stops without handing anything over
+                do {
+                    boolean done = stopped.getCount() == 0;
+                    item = ready.poll(100, TimeUnit.MILLISECONDS);
+                    if (item == null && done)
+                        throw new IOException("Image decoding stopped before its last row");
+                } while (item == null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while resizing");
+            }
+            if (item instanceof int[] rows)
+                return rows;
+            if (item instanceof IOException e)
+                throw new IOException(e.getMessage(), e);
+            if (item instanceof Throwable t)
+                throw new IOException("Image decoding failed", t);
+            throw new IOException("Image ended before its last row");
+        }
+
+        /**
+         * Stop the decoder and wait a while for it. Only the decoding thread may abort the reader
+         * (the JPEG reader is locked to it), so it aborts itself at its next row.
+         */
+        @Override
+        public void close(Runnable release) {
+            synchronized (this) {
+                closed = true;
+                if (!started) {
+                    // It will never start now
+                    task.cancel(false);
+                    reader.removeIIOReadUpdateListener(this);
+                    stopped.countDown();
+                }
+            }
+            boolean done;
+            try {
+                done = stopped.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done = false;
+            }
+            if (!done) {
+                task.cancel(true);
+                synchronized (this) {
+                    if (stopped.getCount() > 0) {
+                        this.release = release;
+                        return;
+                    }
+                }
+            }
+            release.run();
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                int minX, int minY, int periodX, int periodY, int[] bands) {
+            this.pass = pass;
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage image) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass,
+                int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY, int width,
+                int height, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+        }
+    }
+
+    /**
+     * Decodes the source region under each band of output rows when the encoder asks for it
+     */
+    private static final class RegionBands implements Bands {
+        private final ImageReader reader;
+        private final Layout layout;
+        private final int rowsPerBand;
+        private final ImageReadParam param;
+        private final Accumulator accumulator;
+        private final int[] row;
+        private int oyStart;
+
+        RegionBands(ImageReader reader, Layout layout, int rowsPerBand) {
+            this.reader = reader;
+            this.layout = layout;
+            this.rowsPerBand = rowsPerBand;
+            this.param = reader.getDefaultReadParam();
+            this.accumulator = new Accumulator(layout);
+            this.row = new int[layout.decodedW];
+        }
+
+        @Override
+        public int[] next() throws IOException {
+            int oyEnd = Math.min(layout.targetH, oyStart + rowsPerBand);
+            int sy0 = (int) Math.floor(oyStart * layout.scaleY);
+            int sy1 = Math.min(layout.srcH, Math.max(sy0 + 1, (int) Math.ceil(oyEnd * layout.scaleY)));
+
+            param.setSourceRegion(new Rectangle(0, sy0, layout.srcW, sy1 - sy0));
+            param.setSourceSubsampling(layout.subsample, layout.subsample, 0, 0);
+            BufferedImage region = reader.read(0, param);
+
+            int[] band = new int[(oyEnd - oyStart) * layout.targetW];
+            for (int oy = oyStart; oy < oyEnd; oy++) {
+                int[] rows = span(oy, layout.scaleY, sy0, layout.subsample, region.getHeight());
+                for (int by = rows[0]; by < rows[1]; by++) {
+                    region.getRGB(0, by, region.getWidth(), 1, row, 0, region.getWidth());
+                    accumulator.add(row);
+                }
+                accumulator.resolve(band, (oy - oyStart) * layout.targetW);
+            }
+            oyStart = oyEnd;
+            return band;
+        }
+
+        @Override
+        public void close(Runnable release) {
+            release.run();
+        }
+    }
+
+    /**
+     * Source and output geometry, with the decoded columns under each output column
+     */
+    private static final class Layout {
+        final int srcW;
+        final int srcH;
+        final int targetW;
+        final int targetH;
+        final int subsample;
+        final int decodedW;
+        final int decodedH;
+        final double scaleX;
+        final double scaleY;
+        final boolean alpha;
+        final int[] x0;
+        final int[] x1;
+
+        Layout(int srcW, int srcH, int targetW, int targetH, int subsample, boolean alpha) {
+            this.srcW = srcW;
+            this.srcH = srcH;
+            this.targetW = targetW;
+            this.targetH = targetH;
+            this.subsample = subsample;
+            this.decodedW = (srcW + subsample - 1) / subsample;
+            this.decodedH = (srcH + subsample - 1) / subsample;
+            this.scaleX = (double) srcW / targetW;
+            this.scaleY = (double) srcH / targetH;
+            this.alpha = alpha;
+            this.x0 = new int[targetW];
+            this.x1 = new int[targetW];
+            for (int ox = 0; ox < targetW; ox++) {
+                int[] span = span(ox, scaleX, 0, subsample, decodedW);
+                x0[ox] = span[0];
+                x1[ox] = span[1];
+            }
+        }
+    }
+
+    /**
+     * The decoded samples whose source coordinate falls in output pixel o's footprint, as [first, end).
+     * Samples sit at origin + i * step; if none falls inside (upscaling), the nearest one is used.
+     */
+    private static int[] span(int o, double scale, int origin, int step, int limit) {
+        double from = o * scale - origin;
+        double to = (o + 1) * scale - origin;
+        int first = (int) Math.ceil(from / step);
+        int end = (int) Math.ceil(to / step);
+        if (end <= first) {
+            first = (int) Math.floor(((o + 0.5) * scale - origin) / step);
+            end = first + 1;
+        }
+        first = Math.max(0, Math.min(limit - 1, first));
+        end = Math.max(first + 1, Math.min(limit, end));
+        return new int[] { first, end };
+    }
+
+    /**
+     * Per-output-pixel sums for the output row being built, premultiplied by alpha
+     */
+    private static final class Accumulator {
+        private final Layout layout;
+        private final long[] acc;
+        private final int[] count;
+
+        Accumulator(Layout layout) {
+            this.layout = layout;
+            this.acc = new long[layout.targetW * 4];
+            this.count = new int[layout.targetW];
+        }
+
+        /**
+         * Add one decoded row
+         */
+        void add(int[] row) {
+            int[] x0 = layout.x0;
+            int[] x1 = layout.x1;
+            for (int ox = 0; ox < x0.length; ox++) {
+                long a = 0, r = 0, g = 0, b = 0;
+                for (int x = x0[ox]; x < x1[ox]; x++) {
+                    int argb = row[x];
+                    int alpha = argb >>> 24;
+                    a += alpha;
+                    r += ((argb >> 16) & 0xFF) * alpha;
+                    g += ((argb >> 8) & 0xFF) * alpha;
+                    b += (argb & 0xFF) * alpha;
+                }
+                int i = ox * 4;
+                acc[i] += a;
+                acc[i + 1] += r;
+                acc[i + 2] += g;
+                acc[i + 3] += b;
+                count[ox] += x1[ox] - x0[ox];
+            }
+        }
+
+        /**
+         * Write the averaged row at offset in out and start the next row
+         */
+        void resolve(int[] out, int offset) {
+            for (int ox = 0; ox < count.length; ox++) {
+                int i = ox * 4;
+                out[offset + ox] = layout.alpha ? unpremultiply(acc[i], acc[i + 1], acc[i + 2], acc[i + 3], count[ox])
+                        : overBlack(acc[i + 1], acc[i + 2], acc[i + 3], count[ox]);
+            }
+            Arrays.fill(acc, 0);
+            Arrays.fill(count, 0);
+        }
+
+        private static int unpremultiply(long a, long r, long g, long b, int n) {
+            if (a == 0)
+                return 0;
+            int alpha = (int) ((a + n / 2) / n);
+            return (alpha << 24) | (int) ((r + a / 2) / a) << 16 | (int) ((g + a / 2) / a) << 8 | (int) ((b + a / 2) / a);
+        }
+
+        private static int overBlack(long r, long g, long b, int n) {
+            if (n == 0)
+                return 0;
+            long d = 255L * n;
+            return (int) ((r + d / 2) / d) << 16 | (int) ((g + d / 2) / d) << 8 | (int) ((b + d / 2) / d);
+        }
+    }
+
+    /**
+     * Samples of a decoder destination that keeps only its last {@link #RING_ROWS} rows: a row
+     * written replaces the one {@link #RING_ROWS} above it
+     */
+    private static final class RingBuffer extends DataBuffer {
+        private final int stride;
+        private final int[][] banks;
+
+        RingBuffer(SampleModel sampleModel) {
+            super(sampleModel.getDataType(), (int) Math.min(Integer.MAX_VALUE,
+                    (long) scanlineStride(sampleModel) * sampleModel.getHeight()), bankCount(sampleModel));
+            this.stride = scanlineStride(sampleModel);
+            this.banks = new int[getNumBanks()][RING_ROWS * stride];
+        }
+
+        /**
+         * Data elements per row, or -1 for a layout this buffer can't map
+         */
+        static int scanlineStride(SampleModel sampleModel) {
+            if (sampleModel instanceof ComponentSampleModel c)
+                return c.getScanlineStride();
+            if (sampleModel instanceof SinglePixelPackedSampleModel s)
+                return s.getScanlineStride();
+            if (sampleModel instanceof MultiPixelPackedSampleModel m)
+                return m.getScanlineStride();
+            return -1;
+        }
+
+        private static int bankCount(SampleModel sampleModel) {
+            if (sampleModel instanceof ComponentSampleModel c)
+                return Arrays.stream(c.getBankIndices()).max().orElse(0) + 1;
+            return 1;
+        }
+
+        private int index(int i) {
+            return (i / stride) % RING_ROWS * stride + i % stride;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return banks[bank][index(i)];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            banks[bank][index(i)] = switch (getDataType()) {
+                case TYPE_BYTE -> val & 0xFF;
+                case TYPE_USHORT -> val & 0xFFFF;
+                case TYPE_SHORT -> (short) val;
+                default -> val;
+            };
+        }
+    }
+}
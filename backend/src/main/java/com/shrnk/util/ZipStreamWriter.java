@@ -0,0 +1,323 @@
+package com.shrnk.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Low-level ZIP container writer for forward-only streams.
+ * Entries are written with a data descriptor (general purpose bit 3), so sizes and CRC
+ * can be supplied after the entry data. Stored entries whose size and CRC are known up front
+ * ({@link #putStoredEntry}) carry them in the local header instead, since readers such as
+ * java.util.zip.ZipInputStream only accept a descriptor on DEFLATED entries.
+ * ZIP64 records are emitted when needed.
+ */
+public class ZipStreamWriter implements Closeable {
+
+    public static final int METHOD_STORE = 0;
+    public static final int METHOD_DEFLATE = 8;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int UNIX_HOST = 3 << 8;
+    private static final long UNIX_FILE_MODE = 0100644; // regular file, rw-r--r--
+
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final long dosTime;
+    private long written;
+    private boolean finished;
+
+    public ZipStreamWriter(OutputStream out) {
+        this.out = out;
+        this.dosTime = toDosTime(LocalDateTime.now());
+    }
+
+    /**
+     * A single archive entry; CRC and sizes are filled in before the descriptor is written
+     */
+    public static class Entry {
+        private final byte[] name;
+        private final int method;
+        private final boolean zip64;
+        private final long dosTime;
+        private final boolean descriptor;
+        private long offset;
+        long crc;
+        long compressedSize;
+        long uncompressedSize;
+
+        private Entry(String name, int method, boolean zip64, long dosTime) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.zip64 = zip64;
+            this.dosTime = dosTime;
+            this.descriptor = true;
+        }
+
+        private Entry(String name, long size, long crc, long dosTime) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = METHOD_STORE;
+            this.zip64 = size >= ZIP64_LIMIT;
+            this.dosTime = dosTime;
+            this.descriptor = false;
+            this.crc = crc;
+            this.compressedSize = size;
+            this.uncompressedSize = size;
+        }
+
+        private int flags() {
+            return descriptor ? FLAG_DATA_DESCRIPTOR | FLAG_UTF8 : FLAG_UTF8;
+        }
+    }
+
+    /**
+     * Whether an entry of the given expected size needs ZIP64 sizes (unknown sizes always do)
+     */
+    public static boolean needsZip64(long expectedSize) {
+        // Leave headroom for deflate expansion of incompressible data: stored blocks add 5 bytes
+        // per 64KB and each compressed block a few flush bytes, well under 1/1024. Declaring ZIP64
+        // only when it may really be needed keeps ordinary entries readable by
+        // java.util.zip.ZipInputStream, which sizes the descriptor by the bytes it read
+        return expectedSize < 0 || expectedSize >= ZIP64_LIMIT - (ZIP64_LIMIT >> 10);
+    }
+
+    /**
+     * Write the local file header and return the entry to be completed by {@link #closeEntry}
+     */
+    public Entry putNextEntry(String name, int method, boolean zip64) throws IOException {
+        return putNextEntry(new Entry(name, method, zip64, dosTime));
+    }
+
+    /**
+     * Write the local file header of an entry dated by its modification time (epoch millis)
+     */
+    public Entry putNextEntry(String name, int method, boolean zip64, long modified) throws IOException {
+        return putNextEntry(new Entry(name, method, zip64, toDosTime(modified)));
+    }
+
+    /**
+     * Write the local header of a stored entry whose size and CRC are already known, so it needs
+     * no data descriptor; {@link #closeEntry} then writes nothing
+     */
+    public Entry putStoredEntry(String name, long size, long crc, long modified) throws IOException {
+        return putNextEntry(new Entry(name, size, crc, toDosTime(modified)));
+    }
+
+    /**
+     * Length of the local header {@link #putStoredEntry} writes for an entry
+     */
+    public static int storedHeaderLength(String name, long size) {
+        return 30 + name.getBytes(StandardCharsets.UTF_8).length + (size >= ZIP64_LIMIT ? 20 : 0);
+    }
+
+    private Entry putNextEntry(Entry e) throws IOException {
+        e.offset = written;
+        boolean zip64 = e.zip64;
+        // Sizes and CRC either follow in the descriptor (zero here) or are known now
+        long crc = e.descriptor ? 0 : e.crc;
+        long compressedSize = e.descriptor ? 0 : e.compressedSize;
+        long uncompressedSize = e.descriptor ? 0 : e.uncompressedSize;
+
+        writeInt(0x04034b50L);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(e.flags());
+        writeShort(e.method);
+        writeInt(e.dosTime);
+        writeInt(crc);
+        writeInt(zip64 ? ZIP64_LIMIT : compressedSize);
+        writeInt(zip64 ? ZIP64_LIMIT : uncompressedSize);
+        writeShort(e.name.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(e.name, 0, e.name.length);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(uncompressedSize);
+            writeLong(compressedSize);
+        }
+
+        entries.add(e);
+        return e;
+    }
+
+    /**
+     * Write raw (already compressed) entry data
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        writeBytes(b, off, len);
+    }
+
+    /**
+     * Write raw entry data from a buffer's remaining bytes
+     */
+    public void write(ByteBuffer data) throws IOException {
+        int len = data.remaining();
+        StreamUtils.write(data, out);
+        written += len;
+    }
+
+    /**
+     * Count len bytes of entry data as written without writing them, for output that keeps only
+     * a window of the archive; the caller skips the same bytes in its own stream
+     */
+    public void skip(long len) {
+        written += len;
+    }
+
+    /**
+     * Write the data descriptor for an entry whose CRC and sizes are now known
+     */
+    public void closeEntry(Entry e) throws IOException {
+        if (!e.descriptor)
+            return;
+        if (!e.zip64 && (e.compressedSize >= ZIP64_LIMIT || e.uncompressedSize >= ZIP64_LIMIT))
+            throw new IOException("Entry exceeded 4GB without ZIP64: " + new String(e.name, StandardCharsets.UTF_8));
+        writeInt(0x08074b50L);
+        writeInt(e.crc);
+        // APPNOTE 4.3.9.2: an entry with a ZIP64 local extra carries 8-byte descriptor sizes
+        if (e.zip64) {
+            writeLong(e.compressedSize);
+            writeLong(e.uncompressedSize);
+        } else {
+            writeInt(e.compressedSize);
+            writeInt(e.uncompressedSize);
+        }
+    }
+
+    /**
+     * Write the central directory and end-of-central-directory records
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+
+        long cdOffset = written;
+        for (Entry e : entries) {
+            boolean bigUncompressed = e.zip64 || e.uncompressedSize >= ZIP64_LIMIT;
+            boolean bigCompressed = e.zip64 || e.compressedSize >= ZIP64_LIMIT;
+            boolean bigOffset = e.offset >= ZIP64_LIMIT;
+            int extraLen = (bigUncompressed ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+            boolean zip64 = extraLen > 0;
+
+            writeInt(0x02014b50L);
+            writeShort(UNIX_HOST | (zip64 ? 45 : 20)); // version made by
+            writeShort(zip64 ? 45 : 20); // version needed
+            writeShort(e.flags());
+            writeShort(e.method);
+            writeInt(e.dosTime);
+            writeInt(e.crc);
+            writeInt(bigCompressed ? ZIP64_LIMIT : e.compressedSize);
+            writeInt(bigUncompressed ? ZIP64_LIMIT : e.uncompressedSize);
+            writeShort(e.name.length);
+            writeShort(zip64 ? extraLen + 4 : 0);
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(UNIX_FILE_MODE << 16); // external attributes
+            writeInt(bigOffset ? ZIP64_LIMIT : e.offset);
+            writeBytes(e.name, 0, e.name.length);
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(extraLen);
+                if (bigUncompressed)
+                    writeLong(e.uncompressedSize);
+                if (bigCompressed)
+                    writeLong(e.compressedSize);
+                if (bigOffset)
+                    writeLong(e.offset);
+            }
+        }
+        long cdSize = written - cdOffset;
+
+        int count = entries.size();
+        if (count >= 0xFFFF || cdOffset >= ZIP64_LIMIT || cdSize >= ZIP64_LIMIT) {
+            long zip64EocdOffset = written;
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cdSize);
+            writeLong(cdOffset);
+
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(zip64EocdOffset);
+            writeInt(1);
+        }
+
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, 0xFFFF));
+        writeShort(Math.min(count, 0xFFFF));
+        writeInt(Math.min(cdSize, ZIP64_LIMIT));
+        writeInt(Math.min(cdOffset, ZIP64_LIMIT));
+        writeShort(0);
+        out.flush();
+    }
+
+    /**
+     * Total bytes written so far
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        written += 2;
+    }
+
+    private void writeInt(long v) throws IOException {
+        out.write((int) (v & 0xFF));
+        out.write((int) ((v >>> 8) & 0xFF));
+        out.write((int) ((v >>> 16) & 0xFF));
+        out.write((int) ((v >>> 24) & 0xFF));
+        written += 4;
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v & 0xFFFFFFFFL);
+        writeInt(v >>> 32);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private static long toDosTime(long modified) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(modified), ZoneId.systemDefault());
+        if (time.getYear() < 1980)
+            time = LocalDateTime.of(1980, 1, 1, 0, 0); // earliest DOS date
+        return toDosTime(time);
+    }
+
+    private static long toDosTime(LocalDateTime t) {
+        return ((long) (t.getYear() - 1980) << 25)
+                | ((long) t.getMonthValue() << 21)
+                | ((long) t.getDayOfMonth() << 16)
+                | ((long) t.getHour() << 11)
+                | ((long) t.getMinute() << 5)
+                | (t.getSecond() >> 1);
+    }
+}
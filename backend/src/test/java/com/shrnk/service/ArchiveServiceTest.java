@@ -0,0 +1,161 @@
+package com.shrnk.service;
+
+import com.shrnk.util.StoredZip;
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.model.LocalFileHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+class ArchiveServiceTest {
+
+    @TempDir
+    static Path tempDir;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("shrnk.temp-dir", tempDir::toString);
+    }
+
+    @Autowired
+    private ArchiveService archiveService;
+
+    @Autowired
+    private OutputChecksums outputChecksums;
+
+    @Test
+    void streamsPartsStraightIntoZip() throws IOException {
+        byte[] binary = new byte[3 << 20]; // several compression blocks
+        new Random(1).nextBytes(binary);
+        byte[] text = "streamed once\n".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+        CountingPart a = new CountingPart("a.bin", binary);
+        CountingPart b = new CountingPart("notes.txt", text);
+        CountingPart c = new CountingPart("empty.txt", new byte[0]);
+
+        String sessionId = UUID.randomUUID().toString();
+        Map<String, byte[]> entries = read(writeZip(sessionId, null, List.of("dir/a.bin", "", "other/empty.txt"),
+                null, a, b, c), null);
+
+        assertEquals(List.of("dir/a.bin", "notes.txt", "other/empty.txt"), List.copyOf(entries.keySet()));
+        assertArrayEquals(binary, entries.get("dir/a.bin"));
+        assertArrayEquals(text, entries.get("notes.txt"));
+        assertEquals(0, entries.get("other/empty.txt").length);
+        for (CountingPart part : List.of(a, b, c))
+            assertEquals(1, part.opened, part.getOriginalFilename());
+        // Nothing is staged on disk on the way into the archive
+        assertFalse(Files.exists(tempDir.resolve(sessionId)));
+    }
+
+    @Test
+    void resizesImagesInline() throws IOException {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 300; y++)
+            for (int x = 0; x < 400; x++)
+                image.setRGB(x, y, (x << 16) | (y << 8) | 0x40);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        CountingPart photo = new CountingPart("photo.png", png.toByteArray());
+        CountingPart readme = new CountingPart("readme.txt", "not an image".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, byte[]> entries = read(writeZip(UUID.randomUUID().toString(), "50", null, null, photo, readme),
+                null);
+
+        assertEquals(List.of("photo_50pct.png", "readme.txt"), List.copyOf(entries.keySet()));
+        BufferedImage resized = ImageIO.read(new ByteArrayInputStream(entries.get("photo_50pct.png")));
+        assertEquals(200, resized.getWidth());
+        assertEquals(150, resized.getHeight());
+        assertEquals("not an image", new String(entries.get("readme.txt"), StandardCharsets.UTF_8));
+        assertEquals(1, photo.opened);
+        assertEquals(1, readme.opened);
+    }
+
+    @Test
+    void encryptsWithPassword() throws IOException {
+        byte[] text = "secret contents".repeat(100).getBytes(StandardCharsets.UTF_8);
+        CountingPart part = new CountingPart("secret.txt", text);
+
+        Map<String, byte[]> entries = read(writeZip(UUID.randomUUID().toString(), null, null, "pa55word", part),
+                "pa55word".toCharArray());
+
+        assertArrayEquals(text, entries.get("secret.txt"));
+        assertEquals(1, part.opened);
+    }
+
+    @Test
+    void recordsChecksumsOfExtractedFiles() throws IOException {
+        byte[] text = "extracted\n".repeat(5000).getBytes(StandardCharsets.UTF_8);
+        byte[] zip = writeZip(UUID.randomUUID().toString(), null, List.of("docs/notes.txt"), null,
+                new CountingPart("notes.txt", text));
+
+        String sessionId = UUID.randomUUID().toString();
+        List<File> extracted = archiveService.extractZip(sessionId,
+                new MockMultipartFile("file", "in.zip", "application/zip", zip), null);
+
+        Path file = extracted.get(0).toPath();
+        StoredZip.Entry entry = new StoredZip.Entry("docs/notes.txt", file, Files.size(file),
+                Files.getLastModifiedTime(file).toMillis());
+        CRC32 crc = new CRC32();
+        crc.update(text);
+        assertEquals(crc.getValue(), outputChecksums.forSession(sessionId).get(entry));
+    }
+
+    private byte[] writeZip(String sessionId, String resizeOption, List<String> paths, String password,
+            MultipartFile... files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archiveService.writeZip(sessionId, files, paths, password, resizeOption, false, "NORMAL", out);
+        return out.toByteArray();
+    }
+
+    private static Map<String, byte[]> read(byte[] zip, char[] password) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip), password)) {
+            for (LocalFileHeader header; (header = in.getNextEntry()) != null; )
+                entries.put(header.getFileName(), in.readAllBytes());
+        }
+        return entries;
+    }
+
+    /**
+     * An uploaded part that counts how often its body is opened
+     */
+    private static class CountingPart extends MockMultipartFile {
+        int opened;
+
+        CountingPart(String name, byte[] content) {
+            super("files", name, "application/octet-stream", content);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            opened++;
+            return super.getInputStream();
+        }
+    }
+}
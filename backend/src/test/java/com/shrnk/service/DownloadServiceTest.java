@@ -0,0 +1,170 @@
+package com.shrnk.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadServiceTest {
+
+    private static final int LENGTH = 1000;
+
+    @TempDir
+    Path dir;
+
+    private final DownloadService downloadService = new DownloadService();
+    private byte[] data;
+    private File file;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        data = new byte[LENGTH];
+        new Random(7).nextBytes(data);
+        file = Files.write(dir.resolve("data.bin"), data).toFile();
+    }
+
+    @Test
+    void servesWholeFileWithoutRange() throws IOException {
+        MockHttpServletResponse response = get(null);
+        assertEquals(200, response.getStatus());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertTrue(response.getHeader(HttpHeaders.ETAG).startsWith("\""));
+        assertArrayEquals(data, response.getContentAsByteArray());
+    }
+
+    @Test
+    void servesSuffixRange() throws IOException {
+        assertPartial(get("bytes=-100"), 900, 999);
+        // A suffix longer than the file is the whole file
+        assertPartial(get("bytes=-5000"), 0, 999);
+    }
+
+    @Test
+    void servesOpenEndedRange() throws IOException {
+        assertPartial(get("bytes=990-"), 990, 999);
+    }
+
+    @Test
+    void clampsRangeEndToFileLength() throws IOException {
+        assertPartial(get("bytes=500-99999"), 500, 999);
+        assertPartial(get("bytes=999-999"), 999, 999);
+    }
+
+    @Test
+    void rejectsUnsatisfiableRange() throws IOException {
+        for (String range : List.of("bytes=1000-", "bytes=5000-6000", "bytes=-0")) {
+            MockHttpServletResponse response = get(range);
+            assertEquals(416, response.getStatus(), range);
+            assertEquals("bytes */" + LENGTH, response.getHeader(HttpHeaders.CONTENT_RANGE), range);
+            assertEquals(0, response.getContentLength(), range);
+        }
+    }
+
+    @Test
+    void ignoresMalformedRange() throws IOException {
+        for (String range : List.of("bytes=abc", "bytes=10-5", "items=0-10", "bytes=5")) {
+            MockHttpServletResponse response = get(range);
+            assertEquals(200, response.getStatus(), range);
+            assertArrayEquals(data, response.getContentAsByteArray(), range);
+        }
+    }
+
+    @Test
+    void mergesOverlappingRanges() throws IOException {
+        assertPartial(get("bytes=10-19,0-9,15-29"), 0, 29);
+    }
+
+    @Test
+    void servesDisjointRangesAsMultipart() throws IOException {
+        MockHttpServletResponse response = get("bytes=0-9,-10");
+        assertEquals(206, response.getStatus());
+        String contentType = response.getContentType();
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType);
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        byte[] body = response.getContentAsByteArray();
+        assertEquals(body.length, response.getContentLengthLong());
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        assertTrue(text.endsWith("\r\n--" + boundary + "--\r\n"));
+        assertPart(text, "bytes 0-9/" + LENGTH, 0, 9);
+        assertPart(text, "bytes 990-999/" + LENGTH, 990, 999);
+    }
+
+    @Test
+    void honoursIfRangeDate() throws IOException {
+        String lastModified = get(null).getHeader(HttpHeaders.LAST_MODIFIED);
+        assertPartial(get("bytes=0-9", HttpHeaders.IF_RANGE, lastModified), 0, 9);
+
+        MockHttpServletResponse changed = get("bytes=0-9", HttpHeaders.IF_RANGE, "Thu, 01 Jan 2015 00:00:00 GMT");
+        assertEquals(200, changed.getStatus());
+        assertArrayEquals(data, changed.getContentAsByteArray());
+    }
+
+    @Test
+    void honoursRangeWhenIfRangeMatchesTag() throws IOException {
+        String etag = get(null).getHeader(HttpHeaders.ETAG);
+        assertPartial(get("bytes=0-9", HttpHeaders.IF_RANGE, etag), 0, 9);
+
+        // If-Range requires a strong comparison, so the weak form of the same tag fails it
+        MockHttpServletResponse response = get("bytes=0-9", HttpHeaders.IF_RANGE, "W/" + etag);
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(data, response.getContentAsByteArray());
+    }
+
+    @Test
+    void evaluatesConditionalHeaders() throws IOException {
+        String etag = get(null).getHeader(HttpHeaders.ETAG);
+        assertEquals(304, get(null, HttpHeaders.IF_NONE_MATCH, etag).getStatus());
+        assertEquals(304, get(null, HttpHeaders.IF_NONE_MATCH, "W/" + etag).getStatus());
+        assertEquals(200, get(null, HttpHeaders.IF_MATCH, etag).getStatus());
+        assertEquals(412, get(null, HttpHeaders.IF_MATCH, "W/" + etag).getStatus());
+        assertEquals(200, get(null, HttpHeaders.IF_MATCH, "*").getStatus());
+    }
+
+    private MockHttpServletResponse get(String range, String... headers) throws IOException {
+        MockHttpServletRequest request = request(range);
+        for (int i = 0; i < headers.length; i += 2)
+            request.addHeader(headers[i], headers[i + 1]);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        downloadService.serve(file, "attachment", request, response);
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/download");
+        if (range != null)
+            request.addHeader(HttpHeaders.RANGE, range);
+        return request;
+    }
+
+    private void assertPartial(MockHttpServletResponse response, int start, int end) {
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes " + start + "-" + end + "/" + LENGTH, response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(end - start + 1, response.getContentLengthLong());
+        assertArrayEquals(Arrays.copyOfRange(data, start, end + 1), response.getContentAsByteArray());
+    }
+
+    private void assertPart(String body, String contentRange, int start, int end) {
+        String header = HttpHeaders.CONTENT_RANGE + ": " + contentRange + "\r\n\r\n";
+        int at = body.indexOf(header);
+        assertTrue(at >= 0, contentRange);
+        byte[] part = body.substring(at + header.length(), at + header.length() + end - start + 1)
+                .getBytes(StandardCharsets.ISO_8859_1);
+        assertArrayEquals(Arrays.copyOfRange(data, start, end + 1), part, contentRange);
+    }
+}
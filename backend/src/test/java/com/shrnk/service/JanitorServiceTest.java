@@ -0,0 +1,100 @@
+package com.shrnk.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE, properties = {
+        "shrnk.janitor.min-idle-seconds=1",
+        "shrnk.janitor.max-age-minutes=1",
+        // Always under pressure, so every idle session is up for eviction
+        "shrnk.janitor.min-free-mb=100000000",
+        "shrnk.janitor.tick-ms=3600000" })
+class JanitorServiceTest {
+
+    @TempDir
+    static Path tempDir;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("shrnk.temp-dir", tempDir::toString);
+    }
+
+    @Autowired
+    private JanitorService janitorService;
+
+    @Autowired
+    private JobScheduler jobScheduler;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Test
+    void keepsSessionOfRunningSyncJobUnderPressure() throws Exception {
+        long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(10);
+        String busy = session(idleSince);
+        String idle = session(idleSince);
+
+        JobScheduler.Ticket ticket = jobScheduler.admit(busy);
+        try (ticket) {
+            janitorService.tick();
+            awaitDeleted(idle);
+            assertTrue(Files.exists(tempDir.resolve(busy)));
+            assertNotNull(sessionRegistry.get(busy));
+        }
+
+        // Releasing the ticket counts as a use; once idle again the session can go
+        janitorService.tick();
+        assertNotNull(sessionRegistry.get(busy));
+        Thread.sleep(1100);
+        janitorService.tick();
+        awaitDeleted(busy);
+    }
+
+    @Test
+    void keepsSessionOfRunningSyncJobPastMaxAge() throws Exception {
+        String busy = session(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+
+        JobScheduler.Ticket ticket = jobScheduler.admit(busy);
+        try (ticket) {
+            janitorService.tick();
+            Thread.sleep(200);
+            assertTrue(Files.exists(tempDir.resolve(busy)));
+            assertNotNull(sessionRegistry.get(busy));
+        }
+    }
+
+    /**
+     * Register a session holding one file, last used at the given time
+     */
+    private String session(long lastAccess) throws IOException {
+        String sessionId = UUID.randomUUID().toString();
+        Path file = Files.createDirectories(tempDir.resolve(sessionId).resolve("output")).resolve("out.bin");
+        Files.write(file, new byte[4096]);
+        sessionRegistry.open(sessionId, lastAccess);
+        sessionRegistry.addBytes(sessionId, 4096);
+        return sessionId;
+    }
+
+    private void awaitDeleted(String sessionId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.exists(tempDir.resolve(sessionId)) && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertFalse(Files.exists(tempDir.resolve(sessionId)), sessionId);
+        assertNull(sessionRegistry.get(sessionId));
+    }
+}
@@ -0,0 +1,170 @@
+package com.shrnk.service;
+
+import com.shrnk.model.Upload;
+import com.shrnk.util.SavedUpload;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+class UploadServiceTest {
+
+    private static final int CHUNK_SIZE = UploadService.MIN_CHUNK_SIZE;
+
+    @TempDir
+    static Path tempDir;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("shrnk.temp-dir", tempDir::toString);
+    }
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Test
+    void assemblesChunksSentOutOfOrder() throws IOException {
+        byte[] data = randomBytes(CHUNK_SIZE * 3 + 100);
+        Upload upload = uploadService.begin("data.bin", data.length, CHUNK_SIZE, sha256(data));
+        assertEquals(4, upload.getChunkCount());
+
+        for (int index : new int[] { 3, 1, 0, 2 })
+            assertTrue(uploadService.writeChunk(upload, index, null, chunk(data, index)));
+        assertTrue(upload.isComplete());
+        uploadService.commit(upload);
+
+        assertArrayEquals(data, Files.readAllBytes(upload.getPath()));
+        MultipartFile[] files = uploadService.resolve(List.of(upload.getUploadId()));
+        assertEquals("data.bin", files[0].getOriginalFilename());
+        assertEquals(sha256(data), ((SavedUpload) files[0]).getContentHash());
+    }
+
+    @Test
+    void skipsDuplicateChunkWithoutReadingIt() throws IOException {
+        byte[] data = randomBytes(CHUNK_SIZE * 2);
+        Upload upload = uploadService.begin("dup.bin", data.length, CHUNK_SIZE, null);
+        String checksum = sha256(Arrays.copyOfRange(data, 0, CHUNK_SIZE));
+
+        assertTrue(uploadService.writeChunk(upload, 0, checksum, chunk(data, 0)));
+        assertFalse(uploadService.writeChunk(upload, 0, checksum.toUpperCase(), unreadable()));
+        assertFalse(uploadService.writeChunk(upload, 0, null, unreadable()));
+        assertEquals(List.of(0), upload.getReceivedChunks());
+
+        assertTrue(uploadService.writeChunk(upload, 1, null, chunk(data, 1)));
+        uploadService.commit(upload);
+        assertArrayEquals(data, Files.readAllBytes(upload.getPath()));
+    }
+
+    @Test
+    void replacesChunkResentWithDifferentChecksum() throws IOException {
+        byte[] data = randomBytes(CHUNK_SIZE * 2);
+        Upload upload = uploadService.begin("replace.bin", data.length, CHUNK_SIZE, sha256(data));
+        byte[] wrong = randomBytes(CHUNK_SIZE);
+        wrong[0] ^= 1;
+
+        assertTrue(uploadService.writeChunk(upload, 0, null, new ByteArrayInputStream(wrong)));
+        assertTrue(uploadService.writeChunk(upload, 1, null, chunk(data, 1)));
+        assertThrows(IllegalArgumentException.class, () -> uploadService.commit(upload));
+
+        byte[] first = Arrays.copyOfRange(data, 0, CHUNK_SIZE);
+        assertTrue(uploadService.writeChunk(upload, 0, sha256(first), chunk(data, 0)));
+        uploadService.commit(upload);
+        assertArrayEquals(data, Files.readAllBytes(upload.getPath()));
+    }
+
+    @Test
+    void failedRewriteLeavesChunkMissing() throws IOException {
+        byte[] data = randomBytes(CHUNK_SIZE * 2);
+        Upload upload = uploadService.begin("rewrite.bin", data.length, CHUNK_SIZE, null);
+        String checksum = sha256(Arrays.copyOfRange(data, 0, CHUNK_SIZE));
+        assertTrue(uploadService.writeChunk(upload, 0, checksum, chunk(data, 0)));
+        assertTrue(uploadService.writeChunk(upload, 1, null, chunk(data, 1)));
+
+        byte[] other = randomBytes(CHUNK_SIZE);
+        other[0] ^= 1;
+        assertThrows(EOFException.class, () -> uploadService.writeChunk(upload, 0, sha256(other),
+                new ByteArrayInputStream(other, 0, CHUNK_SIZE / 2)));
+        assertEquals(List.of(1), upload.getReceivedChunks());
+        assertNull(upload.getChunkHash(0));
+        assertThrows(IllegalStateException.class, () -> uploadService.commit(upload));
+
+        // The original chunk is not acknowledged unread any more: it has to be sent again
+        assertTrue(uploadService.writeChunk(upload, 0, checksum, chunk(data, 0)));
+        uploadService.commit(upload);
+        assertArrayEquals(data, Files.readAllBytes(upload.getPath()));
+    }
+
+    @Test
+    void rejectsBadChunks() throws IOException {
+        byte[] data = randomBytes(CHUNK_SIZE + 10);
+        Upload upload = uploadService.begin("bad.bin", data.length, CHUNK_SIZE, null);
+
+        assertThrows(IllegalArgumentException.class, () -> uploadService.writeChunk(upload, 2, null, chunk(data, 1)));
+        assertThrows(IllegalArgumentException.class,
+                () -> uploadService.writeChunk(upload, 1, sha256(new byte[10]), chunk(data, 1)));
+        assertThrows(EOFException.class,
+                () -> uploadService.writeChunk(upload, 0, null, new ByteArrayInputStream(new byte[10])));
+        assertThrows(IllegalArgumentException.class,
+                () -> uploadService.writeChunk(upload, 1, null, new ByteArrayInputStream(new byte[11])));
+        assertTrue(upload.getReceivedChunks().isEmpty());
+        assertThrows(IllegalStateException.class, () -> uploadService.commit(upload));
+    }
+
+    @Test
+    void rejectsChunkLayoutsOutsideLimits() {
+        assertThrows(IllegalArgumentException.class, () -> uploadService.begin("small.bin", 1000, 1024, null));
+        assertThrows(IllegalArgumentException.class, () -> uploadService.begin("negative.bin", 1000, -1, null));
+        // One chunk past the configured maximum of 65536
+        long size = 65536L * CHUNK_SIZE + 1;
+        assertThrows(IllegalArgumentException.class, () -> uploadService.begin("many.bin", size, CHUNK_SIZE, null));
+    }
+
+    private static InputStream chunk(byte[] data, int index) {
+        int from = index * CHUNK_SIZE;
+        return new ByteArrayInputStream(data, from, Math.min(CHUNK_SIZE, data.length - from));
+    }
+
+    /**
+     * A body that fails if the service reads it
+     */
+    private static InputStream unreadable() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Chunk body was read");
+            }
+        };
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static String sha256(byte[] data) {
+        return HexFormat.of().formatHex(ResultCache.newDigest().digest(data));
+    }
+}
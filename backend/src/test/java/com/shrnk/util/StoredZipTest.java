@@ -0,0 +1,193 @@
+package com.shrnk.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class StoredZipTest {
+
+    private static final long MODIFIED = ZipStreamWriterTest.MODIFIED;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void generatesReadableArchive() throws IOException {
+        byte[] data = ZipStreamWriterTest.randomBytes(70_000);
+        StoredZip zip = storedZip(data);
+        byte[] whole = render(zip, 0, zip.length());
+        assertEquals(zip.length(), whole.length);
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(whole))) {
+            assertEquals("a.bin", in.getNextEntry().getName());
+            assertArrayEquals(data, in.readAllBytes());
+            assertEquals("empty.txt", in.getNextEntry().getName());
+            assertEquals(0, in.readAllBytes().length);
+            assertEquals("sub/café.txt", in.getNextEntry().getName());
+            assertEquals("second entry", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            assertNull(in.getNextEntry());
+        }
+        Path file = Files.write(dir.resolve("whole.zip"), whole);
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            assertEquals(3, zipFile.size());
+            assertEquals(data.length, zipFile.getEntry("a.bin").getSize());
+        }
+    }
+
+    @Test
+    void rendersAnyRangeOnItsOwn() throws IOException {
+        StoredZip zip = storedZip(ZipStreamWriterTest.randomBytes(70_000));
+        byte[] whole = render(zip, 0, zip.length());
+        int length = whole.length;
+        // Inside a header, inside data, across entry boundaries and in the central directory
+        for (int from : new int[] { 0, 1, 30, 40, 500, 69_000, length - 200, length - 30, length - 1 }) {
+            for (int count : new int[] { 1, 17, 1000, length - from }) {
+                int n = Math.min(count, length - from);
+                assertArrayEquals(Arrays.copyOfRange(whole, from, from + n),
+                        render(zip, from, n), from + "+" + n);
+            }
+        }
+    }
+
+    @Test
+    void roundTripsStoredEntryOverZip64Limit() throws IOException {
+        long size = 0xFFFFFFFFL + 4096;
+        byte[] tail = "end of the big entry".getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        byte[] zeros = new byte[1 << 20];
+        for (long left = size - tail.length; left > 0; left -= zeros.length)
+            crc.update(zeros, 0, (int) Math.min(zeros.length, left));
+        crc.update(tail);
+
+        // The entry's data is left as a hole in a sparse file, apart from its last bytes
+        Path file = dir.resolve("zip64.zip");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.SPARSE);
+                ZipStreamWriter zip = new ZipStreamWriter(Channels.newOutputStream(channel))) {
+            writeStored(zip, "small.txt", "before".getBytes(StandardCharsets.UTF_8));
+            ZipStreamWriter.Entry big = zip.putStoredEntry("big.bin", size, crc.getValue(), MODIFIED);
+            channel.position(channel.position() + size - tail.length);
+            zip.skip(size - tail.length);
+            zip.write(tail, 0, tail.length);
+            zip.closeEntry(big);
+            writeStored(zip, "after.txt", "after".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            assertEquals(size, zipFile.getEntry("big.bin").getSize());
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry("big.bin"))) {
+                in.skipNBytes(size - tail.length);
+                assertArrayEquals(tail, in.readAllBytes());
+            }
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry("after.txt"))) {
+                assertEquals("after", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+
+        // Reading the whole entry checks its size and CRC
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(file))) {
+            assertEquals("small.txt", in.getNextEntry().getName());
+            ZipEntry big = in.getNextEntry();
+            assertEquals("big.bin", big.getName());
+            assertEquals(size, in.transferTo(OutputStream.nullOutputStream()));
+            assertEquals("after.txt", in.getNextEntry().getName());
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    void takesRecordedChecksumsAndRecordsComputedOnes() throws IOException {
+        Path a = Files.write(dir.resolve("a.bin"), ZipStreamWriterTest.randomBytes(70_000));
+        Path empty = Files.write(dir.resolve("empty.txt"), new byte[0]);
+        Path b = Files.writeString(dir.resolve("b.txt"), "second entry");
+        Recorded recorded = new Recorded();
+        // A value that can't be a.bin's real CRC shows the file was not read for it
+        recorded.put(entry("a.bin", a), 0x12345678L);
+
+        StoredZip zip = storedZip(a, empty, b, recorded);
+        Path file = Files.write(dir.resolve("recorded.zip"), render(zip, 0, zip.length()));
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            assertEquals(0x12345678L, zipFile.getEntry("a.bin").getCrc());
+        }
+        assertEquals(3, recorded.crcs.size());
+        assertEquals(3, recorded.puts);
+
+        // The next download of the same files computes nothing
+        StoredZip again = storedZip(a, empty, b, recorded);
+        render(again, 0, again.length());
+        assertEquals(3, recorded.puts);
+    }
+
+    private StoredZip storedZip(byte[] data) throws IOException {
+        Path a = Files.write(dir.resolve("a.bin"), data);
+        Path empty = Files.write(dir.resolve("empty.txt"), new byte[0]);
+        Path b = Files.writeString(dir.resolve("b.txt"), "second entry");
+        return storedZip(a, empty, b, new Recorded());
+    }
+
+    private static StoredZip storedZip(Path a, Path empty, Path b, StoredZip.Checksums checksums)
+            throws IOException {
+        return new StoredZip(List.of(entry("a.bin", a), entry("empty.txt", empty), entry("sub/café.txt", b)),
+                checksums);
+    }
+
+    private static StoredZip.Entry entry(String name, Path path) throws IOException {
+        return new StoredZip.Entry(name, path, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+    }
+
+    private static byte[] render(StoredZip zip, long position, long count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        zip.write(position, count, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Checksums kept in a map, counting how many are handed back
+     */
+    private static class Recorded implements StoredZip.Checksums {
+        final Map<String, Long> crcs = new HashMap<>();
+        int puts;
+
+        @Override
+        public Long get(StoredZip.Entry entry) {
+            return crcs.get(entry.key());
+        }
+
+        @Override
+        public void put(StoredZip.Entry entry, long crc) {
+            crcs.put(entry.key(), crc);
+            puts++;
+        }
+    }
+
+    private static void writeStored(ZipStreamWriter zip, String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipStreamWriter.Entry entry = zip.putStoredEntry(name, data.length, crc.getValue(), MODIFIED);
+        zip.write(data, 0, data.length);
+        zip.closeEntry(entry);
+    }
+}
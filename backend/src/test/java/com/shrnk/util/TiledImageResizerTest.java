@@ -0,0 +1,155 @@
+package com.shrnk.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TiledImageResizerTest {
+
+    // Small enough that every image here is produced in several bands
+    private static final long BUDGET = 64 * 1024;
+
+    private final ExecutorService decoder = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        decoder.shutdownNow();
+    }
+
+    @Test
+    void bandedJpegMatchesDirectResize() throws IOException {
+        assertMatchesDirectResize(encode(gradient(320, 240), "jpg", false));
+    }
+
+    @Test
+    void bandedPngMatchesDirectResize() throws IOException {
+        assertMatchesDirectResize(encode(gradient(320, 240), "png", false));
+    }
+
+    @Test
+    void bandedInterlacedPngMatchesDirectResize() throws IOException {
+        // Adam7 rows can't be consumed in one pass, so this goes region by region
+        assertMatchesDirectResize(encode(gradient(320, 240), "png", true));
+    }
+
+    @Test
+    void closingEarlyStopsDecoderAndReleases() throws Exception {
+        byte[] jpeg = encode(gradient(1024, 1024), "jpg", false);
+        for (int rowsRead : new int[] { 0, 1, 300 }) {
+            ImageReader reader = reader(jpeg);
+            TiledImageResizer.BandedImage banded = TiledImageResizer.resize(reader, 512, 512, 1, false, BUDGET,
+                    decoder);
+            if (rowsRead > 0)
+                banded.getData(new Rectangle(0, 0, 512, rowsRead));
+
+            CountDownLatch released = new CountDownLatch(1);
+            long start = System.nanoTime();
+            banded.close(released::countDown);
+            assertTrue(released.await(10, TimeUnit.SECONDS), "released after " + rowsRead + " rows");
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "stopped promptly");
+            reader.dispose();
+        }
+    }
+
+    @Test
+    void closingBeforeDecoderStartsReleasesAtOnce() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        ImageReader reader = reader(encode(gradient(320, 240), "jpg", false));
+        TiledImageResizer.BandedImage banded = TiledImageResizer.resize(reader, 160, 120, 1, false, BUDGET,
+                queued::add);
+
+        CountDownLatch released = new CountDownLatch(1);
+        banded.close(released::countDown);
+        assertEquals(0, released.getCount());
+        // A decode task that gets to run after all leaves the reader alone
+        queued.forEach(Runnable::run);
+        reader.dispose();
+    }
+
+    /**
+     * Resize to half size band by band and compare with a 2x2 average of the fully decoded image
+     */
+    private void assertMatchesDirectResize(byte[] encoded) throws IOException {
+        BufferedImage full = ImageIO.read(new ByteArrayInputStream(encoded));
+        int w = full.getWidth() / 2;
+        int h = full.getHeight() / 2;
+
+        ImageReader reader = reader(encoded);
+        Raster resized;
+        try (TiledImageResizer.BandedImage banded = TiledImageResizer.resize(reader, w, h, 1, false, BUDGET,
+                decoder)) {
+            resized = banded.copyData(null);
+        } finally {
+            reader.dispose();
+        }
+
+        int[] pixel = new int[3];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                resized.getPixel(x, y, pixel);
+                for (int c = 0; c < 3; c++) {
+                    int shift = 16 - 8 * c;
+                    int sum = 0;
+                    for (int dy = 0; dy < 2; dy++)
+                        for (int dx = 0; dx < 2; dx++)
+                            sum += (full.getRGB(2 * x + dx, 2 * y + dy) >> shift) & 0xFF;
+                    int expected = (sum + 2) / 4;
+                    assertTrue(Math.abs(expected - pixel[c]) <= 1,
+                            "pixel " + x + "," + y + " channel " + c + ": " + pixel[c] + " vs " + expected);
+                }
+            }
+        }
+    }
+
+    private static BufferedImage gradient(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | ((x ^ y) & 0xFF));
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format, boolean interlaced) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (interlaced)
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static ImageReader reader(byte[] encoded) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded));
+        ImageReader reader = ImageIO.getImageReaders(in).next();
+        reader.setInput(in, false, false);
+        return reader;
+    }
+}
@@ -0,0 +1,143 @@
+package com.shrnk.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZipStreamWriterTest {
+
+    static final long MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsDeflatedEntries() throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("empty.txt", new byte[0]);
+        contents.put("text.txt", "hello, zip".repeat(1000).getBytes(StandardCharsets.UTF_8));
+        contents.put("sub/café.bin", randomBytes(70_000));
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ZipStreamWriter zip = new ZipStreamWriter(buffer)) {
+            for (Map.Entry<String, byte[]> e : contents.entrySet())
+                writeDeflated(zip, e.getKey(), e.getValue(), false);
+        }
+        assertEntries(contents, buffer.toByteArray());
+    }
+
+    @Test
+    void roundTripsDeflatedEntryDeclaredZip64() throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("zip64.txt", "xyz".repeat(5000).getBytes(StandardCharsets.UTF_8));
+        contents.put("after.txt", "after".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        long descriptor;
+        long compressedSize;
+        try (ZipStreamWriter zip = new ZipStreamWriter(buffer)) {
+            ZipStreamWriter.Entry entry = writeDeflated(zip, "zip64.txt", contents.get("zip64.txt"), true);
+            compressedSize = entry.compressedSize;
+            descriptor = zip.getBytesWritten() - 24;
+            writeDeflated(zip, "after.txt", contents.get("after.txt"), false);
+        }
+        byte[] zip = buffer.toByteArray();
+        // ZipInputStream would expect 4-byte sizes for an entry this small, so check the
+        // descriptor by hand and read the entries through the central directory
+        ByteBuffer d = ByteBuffer.wrap(zip, (int) descriptor, 24).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x08074b50, d.getInt());
+        CRC32 crc = new CRC32();
+        crc.update(contents.get("zip64.txt"));
+        assertEquals((int) crc.getValue(), d.getInt());
+        assertEquals(compressedSize, d.getLong());
+        assertEquals(contents.get("zip64.txt").length, d.getLong());
+        assertCentralDirectory(contents, zip);
+    }
+
+    @Test
+    void declaresZip64OnlyNearTheLimit() {
+        assertFalse(ZipStreamWriter.needsZip64(0));
+        assertFalse(ZipStreamWriter.needsZip64(4_000_000_000L));
+        assertTrue(ZipStreamWriter.needsZip64(0xFFFFFFFFL - 1024));
+        assertTrue(ZipStreamWriter.needsZip64(-1));
+    }
+
+    /**
+     * Check the entries through both the central directory (ZipFile) and the local headers and
+     * descriptors (ZipInputStream)
+     */
+    private void assertEntries(Map<String, byte[]> contents, byte[] zip) throws IOException {
+        Map<String, byte[]> streamed = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            for (ZipEntry entry; (entry = in.getNextEntry()) != null; )
+                streamed.put(entry.getName(), in.readAllBytes());
+        }
+        assertEquals(contents.keySet(), streamed.keySet());
+        contents.forEach((name, data) -> assertArrayEquals(data, streamed.get(name), name));
+        assertCentralDirectory(contents, zip);
+    }
+
+    private void assertCentralDirectory(Map<String, byte[]> contents, byte[] zip) throws IOException {
+        Path file = Files.write(dir.resolve("round-trip.zip"), zip);
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            assertEquals(contents.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> e : contents.entrySet()) {
+                ZipEntry entry = zipFile.getEntry(e.getKey());
+                assertEquals(e.getValue().length, entry.getSize(), e.getKey());
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    assertArrayEquals(e.getValue(), in.readAllBytes(), e.getKey());
+                }
+            }
+        }
+    }
+
+    private static ZipStreamWriter.Entry writeDeflated(ZipStreamWriter zip, String name, byte[] data, boolean zip64)
+            throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(data);
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ZipStreamWriter.Entry entry = zip.putNextEntry(name, ZipStreamWriter.METHOD_DEFLATE, zip64, MODIFIED);
+        zip.write(compressed.toByteArray(), 0, compressed.size());
+        entry.crc = crc.getValue();
+        entry.compressedSize = compressed.size();
+        entry.uncompressedSize = data.length;
+        zip.closeEntry(entry);
+        return entry;
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}